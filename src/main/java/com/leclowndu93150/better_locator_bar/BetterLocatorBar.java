@@ -1,37 +1,64 @@
 package com.leclowndu93150.better_locator_bar;
 
+import net.minecraft.server.MinecraftServer;
 import net.minecraft.server.level.ServerLevel;
 import net.neoforged.bus.api.IEventBus;
+import net.neoforged.fml.ModContainer;
 import net.neoforged.fml.common.Mod;
+import net.neoforged.fml.config.ModConfig;
 import net.neoforged.neoforge.common.NeoForge;
 import net.neoforged.neoforge.event.tick.PlayerTickEvent;
+import net.neoforged.neoforge.event.server.ServerStoppingEvent;
+import net.neoforged.neoforge.event.tick.ServerTickEvent;
+import net.neoforged.neoforge.event.entity.player.PlayerContainerEvent;
 import net.neoforged.neoforge.event.entity.player.PlayerEvent;
 import net.neoforged.neoforge.client.event.ClientPlayerNetworkEvent;
 import net.neoforged.neoforge.event.level.BlockEvent;
+import net.neoforged.neoforge.event.level.ChunkEvent;
+import net.neoforged.neoforge.event.level.LevelEvent;
 import com.leclowndu93150.better_locator_bar.network.NetworkHandler;
 import net.neoforged.api.distmarker.Dist;
 import net.neoforged.fml.loading.FMLEnvironment;
 import net.minecraft.core.GlobalPos;
 import net.minecraft.world.level.block.Blocks;
 
+import java.util.concurrent.CompletableFuture;
+
 @Mod(BetterLocatorBar.MODID)
 public class BetterLocatorBar {
     public static final String MODID = "better_locator_bar";
     private final LodestoneCompassTracker tracker = new LodestoneCompassTracker();
+    private final LodestoneOrphanSweeper orphanSweeper = new LodestoneOrphanSweeper(tracker);
 
-    public BetterLocatorBar(IEventBus modEventBus) {
+    public BetterLocatorBar(IEventBus modEventBus, ModContainer modContainer) {
         modEventBus.addListener(NetworkHandler::register);
+        modContainer.registerConfig(ModConfig.Type.COMMON, Config.SPEC);
 
+        NeoForge.EVENT_BUS.addListener(this::onServerTick);
         NeoForge.EVENT_BUS.addListener(this::onPlayerTick);
         NeoForge.EVENT_BUS.addListener(this::onPlayerLoggedIn);
+        NeoForge.EVENT_BUS.addListener(this::onPlayerLoggedOut);
+        NeoForge.EVENT_BUS.addListener(this::onPlayerRespawn);
+        NeoForge.EVENT_BUS.addListener(this::onPlayerChangedDimension);
+        NeoForge.EVENT_BUS.addListener(this::onContainerOpen);
         NeoForge.EVENT_BUS.addListener(this::onBlockPlaced);
         NeoForge.EVENT_BUS.addListener(this::onBlockBroken);
+        NeoForge.EVENT_BUS.addListener(this::onNeighborNotify);
+        NeoForge.EVENT_BUS.addListener(this::onLevelUnload);
+        NeoForge.EVENT_BUS.addListener(this::onChunkLoad);
+        NeoForge.EVENT_BUS.addListener(this::onServerStopping);
 
         if (FMLEnvironment.dist == Dist.CLIENT) {
             NeoForge.EVENT_BUS.addListener(this::onClientPlayerJoin);
         }
     }
 
+    private void onServerTick(ServerTickEvent.Pre event) {
+        tracker.onServerTick(event.getServer());
+        LodestoneColorRegistry.onServerTick();
+        orphanSweeper.onServerTick(event.getServer());
+    }
+
     private void onPlayerTick(PlayerTickEvent.Post event) {
         tracker.onPlayerTick(event.getEntity());
     }
@@ -39,6 +66,22 @@ public class BetterLocatorBar {
     private void onPlayerLoggedIn(PlayerEvent.PlayerLoggedInEvent event) {
         tracker.onPlayerJoin(event.getEntity());
     }
+
+    private void onPlayerLoggedOut(PlayerEvent.PlayerLoggedOutEvent event) {
+        tracker.onPlayerLeave(event.getEntity());
+    }
+
+    private void onPlayerRespawn(PlayerEvent.PlayerRespawnEvent event) {
+        tracker.onPlayerRespawn(event.getEntity());
+    }
+
+    private void onPlayerChangedDimension(PlayerEvent.PlayerChangedDimensionEvent event) {
+        tracker.onPlayerChangedDimension(event.getEntity());
+    }
+
+    private void onContainerOpen(PlayerContainerEvent.Open event) {
+        tracker.onContainerOpened(event.getEntity(), event.getContainer());
+    }
     
     private void onClientPlayerJoin(ClientPlayerNetworkEvent.LoggingIn event) {
         NetworkHandler.sendModPresentToServer();
@@ -49,6 +92,7 @@ public class BetterLocatorBar {
             GlobalPos pos = GlobalPos.of(((ServerLevel)event.getLevel()).dimension(), event.getPos());
             LodestoneColorRegistry registry = LodestoneColorRegistry.get(event.getLevel().getServer());
             registry.assignColorToLodestone(pos);
+            tracker.invalidateLodestone(pos);
             tracker.refreshWaypointsForLodestone(pos, event.getLevel().getServer());
         }
     }
@@ -58,7 +102,51 @@ public class BetterLocatorBar {
             GlobalPos brokenPos = GlobalPos.of(((net.minecraft.server.level.ServerLevel)event.getLevel()).dimension(), event.getPos());
             LodestoneColorRegistry registry = LodestoneColorRegistry.get(event.getLevel().getServer());
             registry.removeLodestone(brokenPos);
+            tracker.invalidateLodestone(brokenPos);
             tracker.updateCompassesForBrokenLodestone(brokenPos, event.getLevel().getServer());
         }
     }
+    
+    private void onNeighborNotify(BlockEvent.NeighborNotifyEvent event) {
+        // Catches lodestones removed by explosions, pistons, commands and other non-player changes
+        if (event.getLevel() instanceof ServerLevel serverLevel) {
+            tracker.onBlockChanged(serverLevel, event.getPos());
+        }
+    }
+    
+    private void onLevelUnload(LevelEvent.Unload event) {
+        if (event.getLevel() instanceof ServerLevel serverLevel) {
+            tracker.onLevelUnload(serverLevel);
+        }
+    }
+    
+    private void onChunkLoad(ChunkEvent.Load event) {
+        if (!Config.CHUNK_LOAD_DISCOVERY.getAsBoolean() || !(event.getLevel() instanceof ServerLevel serverLevel)) return;
+        
+        MinecraftServer server = serverLevel.getServer();
+        LodestoneColorRegistry registry = LodestoneColorRegistry.get(server);
+        LodestoneChunkScanner.forEachLodestone(event.getChunk(), lodestonePos -> {
+            GlobalPos pos = GlobalPos.of(serverLevel.dimension(), lodestonePos);
+            // Picking a colour reads the regions around the lodestone, so they are loaded off the server thread first
+            CompletableFuture<Void> regionsLoaded = registry.loadRegionsAround(pos);
+            if (regionsLoaded.isDone()) {
+                discoverLodestone(pos, server);
+            } else {
+                regionsLoaded.thenRunAsync(() -> discoverLodestone(pos, server), server);
+            }
+        });
+    }
+    
+    private void discoverLodestone(GlobalPos pos, MinecraftServer server) {
+        LodestoneColorRegistry registry = LodestoneColorRegistry.get(server);
+        if (registry.getLodestoneColor(pos) == null) {
+            registry.assignColorToLodestone(pos);
+            tracker.refreshWaypointsForLodestone(pos, server);
+        }
+    }
+    
+    private void onServerStopping(ServerStoppingEvent event) {
+        orphanSweeper.reset();
+        LodestoneColorRegistry.onServerStopping();
+    }
 }
\ No newline at end of file
@@ -0,0 +1,125 @@
+package com.leclowndu93150.better_locator_bar;
+
+import it.unimi.dsi.fastutil.objects.Object2IntMap;
+import it.unimi.dsi.fastutil.objects.Object2IntOpenHashMap;
+import net.minecraft.core.GlobalPos;
+import net.minecraft.core.component.DataComponents;
+import net.minecraft.resources.ResourceLocation;
+import net.minecraft.server.MinecraftServer;
+import net.minecraft.world.item.ItemStack;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Optional;
+
+/**
+ * Resolves the colour shown for a lodestone compass, both in its lore and on the locator bar.
+ * <p>
+ * A compass whose item model belongs to a registered dye palette (TCC dyed compasses out of the box)
+ * uses that colour; otherwise the lodestone's shared colour from {@link LodestoneColorRegistry} is used.
+ * Item models are resolved through a precomputed table, so the hot path never parses strings.
+ * Other mods can add their own palettes through {@link #registerPalette} or {@link #registerItemModelColor}.
+ */
+public class CompassColorResolver {
+    public static final int NO_COLOR = -1;
+
+    private static final Map<String, Integer> DYE_COLORS = new LinkedHashMap<>();
+
+    static {
+        DYE_COLORS.put("white", 0xF9FFFE);
+        DYE_COLORS.put("light_gray", 0x9D9D97);
+        DYE_COLORS.put("gray", 0x474F52);
+        DYE_COLORS.put("black", 0x1D1D21);
+        DYE_COLORS.put("brown", 0x835432);
+        DYE_COLORS.put("red", 0xB02E26);
+        DYE_COLORS.put("orange", 0xF9801D);
+        DYE_COLORS.put("yellow", 0xFED83D);
+        DYE_COLORS.put("lime", 0x80C71F);
+        DYE_COLORS.put("green", 0x5E7C16);
+        DYE_COLORS.put("cyan", 0x169C9C);
+        DYE_COLORS.put("light_blue", 0x3AB3DA);
+        DYE_COLORS.put("blue", 0x3C44AA);
+        DYE_COLORS.put("purple", 0x8932B8);
+        DYE_COLORS.put("magenta", 0xC74EBD);
+        DYE_COLORS.put("pink", 0xF38BAA);
+    }
+
+    // Replaced wholesale on registration so lookups never see a map that is being modified
+    private static volatile Object2IntMap<ResourceLocation> itemModelColors = createTable();
+
+    private static Object2IntMap<ResourceLocation> createTable() {
+        Object2IntOpenHashMap<ResourceLocation> table = new Object2IntOpenHashMap<>();
+        table.defaultReturnValue(NO_COLOR);
+        return table;
+    }
+
+    static {
+        registerPalette("tcc", "dyed_compass/", DYE_COLORS);
+    }
+
+    /**
+     * Registers a colour for compasses using the given item model.
+     */
+    public static synchronized void registerItemModelColor(ResourceLocation itemModel, int color) {
+        Object2IntMap<ResourceLocation> table = createTable();
+        table.putAll(itemModelColors);
+        table.put(itemModel, color & 0xFFFFFF);
+        itemModelColors = table;
+    }
+
+    /**
+     * Registers a whole palette of item models named {@code namespace:pathPrefix<colour name>}.
+     */
+    public static synchronized void registerPalette(String namespace, String pathPrefix, Map<String, Integer> colors) {
+        Object2IntMap<ResourceLocation> table = createTable();
+        table.putAll(itemModelColors);
+        for (Map.Entry<String, Integer> entry : colors.entrySet()) {
+            table.put(ResourceLocation.fromNamespaceAndPath(namespace, pathPrefix + entry.getKey()), entry.getValue() & 0xFFFFFF);
+        }
+        itemModelColors = table;
+    }
+
+    /**
+     * Gets the palette colour for the compass's item model, or {@link #NO_COLOR} if it has none.
+     */
+    public static int getItemModelColor(ItemStack compass) {
+        return getItemModelColor(compass.get(DataComponents.ITEM_MODEL));
+    }
+
+    public static int getItemModelColor(ResourceLocation itemModel) {
+        return itemModel == null ? NO_COLOR : itemModelColors.getInt(itemModel);
+    }
+
+    /**
+     * Gets the colour of the compass lore dot: palette colour first, then the lodestone's shared colour,
+     * then the default compass colour.
+     */
+    public static int resolveColor(ItemStack compass, GlobalPos targetPos, MinecraftServer server) {
+        return resolveColor(compass.get(DataComponents.ITEM_MODEL), targetPos, LodestoneColorRegistry.get(server));
+    }
+
+    /**
+     * Same as {@link #resolveColor(ItemStack, GlobalPos, MinecraftServer)} for an item model id.
+     */
+    public static int resolveColor(ResourceLocation itemModel, GlobalPos targetPos, LodestoneColorRegistry registry) {
+        int color = resolveColorOrNone(itemModel, targetPos, registry);
+        return color == NO_COLOR ? LodestoneCompassTracker.DEFAULT_COMPASS_COLOR : color;
+    }
+
+    /**
+     * Gets the colour for the waypoint icon, or empty to let the client pick its default.
+     */
+    public static Optional<Integer> resolveIconColor(ItemStack compass, GlobalPos targetPos, MinecraftServer server) {
+        int color = resolveColorOrNone(compass.get(DataComponents.ITEM_MODEL), targetPos, LodestoneColorRegistry.get(server));
+        return color == NO_COLOR ? Optional.empty() : Optional.of(color);
+    }
+
+    private static int resolveColorOrNone(ResourceLocation itemModel, GlobalPos targetPos, LodestoneColorRegistry registry) {
+        int color = getItemModelColor(itemModel);
+        if (color != NO_COLOR) {
+            return color;
+        }
+
+        return registry.getColor(targetPos, NO_COLOR);
+    }
+}
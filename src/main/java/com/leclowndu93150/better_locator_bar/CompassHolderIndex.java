@@ -0,0 +1,48 @@
+package com.leclowndu93150.better_locator_bar;
+
+import net.minecraft.core.GlobalPos;
+
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * Reverse index from a lodestone position to the players and tracked slots holding a compass
+ * pointing at it, so lodestone changes only have to touch the affected holders.
+ * Only accessed from the server thread.
+ */
+public class CompassHolderIndex {
+    private final Map<GlobalPos, Map<UUID, BitSet>> holders = new HashMap<>();
+
+    public void add(GlobalPos target, UUID playerId, int slot) {
+        holders.computeIfAbsent(target, k -> new HashMap<>())
+                .computeIfAbsent(playerId, k -> new BitSet())
+                .set(slot);
+    }
+
+    public void remove(GlobalPos target, UUID playerId, int slot) {
+        Map<UUID, BitSet> players = holders.get(target);
+        if (players == null) return;
+
+        BitSet slots = players.get(playerId);
+        if (slots == null) return;
+
+        slots.clear(slot);
+        if (slots.isEmpty()) {
+            players.remove(playerId);
+            if (players.isEmpty()) {
+                holders.remove(target);
+            }
+        }
+    }
+
+    /**
+     * Gets the players holding a compass for the given lodestone, mapped to the slots it is in.
+     * The returned map must not be modified and may change when the tracker rescans.
+     */
+    public Map<UUID, BitSet> getHolders(GlobalPos target) {
+        return holders.getOrDefault(target, Collections.emptyMap());
+    }
+}
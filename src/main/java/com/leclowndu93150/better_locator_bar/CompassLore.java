@@ -0,0 +1,92 @@
+package com.leclowndu93150.better_locator_bar;
+
+import net.minecraft.core.BlockPos;
+import net.minecraft.network.chat.Component;
+import net.minecraft.world.item.component.ItemLore;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.regex.Pattern;
+
+/**
+ * Builds and rewrites the coordinate line added to lodestone compass lore.
+ * <p>
+ * Our line carries a marker in its style insertion so it can be found again without flattening every
+ * lore line to a string. The coordinate components are cached per position, colour and lodestone state,
+ * so an update that changes nothing returns the existing lore without allocating.
+ */
+public class CompassLore {
+    private static final String MARKER = "better_locator_bar:lodestone";
+    private static final int EXISTING_COORDINATE_COLOR = 0x999999;
+    private static final int MAX_CACHED_LINES = 4096;
+
+    // Lines written before the marker existed
+    private static final Pattern LEGACY_COORDINATES = Pattern.compile("-?\\d+, -?\\d+, -?\\d+");
+
+    private static final Map<LineKey, Component> LINES = new ConcurrentHashMap<>();
+
+    private record LineKey(long pos, int color, boolean lodestoneExists) {}
+
+    /**
+     * Gets the lore with the coordinate line for the given lodestone, returning {@code existing}
+     * itself when it is already up to date.
+     */
+    public static ItemLore apply(ItemLore existing, BlockPos pos, int circleColor, boolean lodestoneExists) {
+        Component line = getLine(pos, circleColor, lodestoneExists);
+        List<Component> lines = existing.lines();
+
+        for (int i = 0; i < lines.size(); i++) {
+            if (isTagged(lines.get(i))) {
+                if (lines.get(i).equals(line)) {
+                    return existing;
+                }
+                List<Component> updated = new ArrayList<>(lines);
+                updated.set(i, line);
+                return new ItemLore(updated);
+            }
+        }
+
+        List<Component> updated = new ArrayList<>(lines.size() + 1);
+        for (Component existingLine : lines) {
+            if (!isLegacyLine(existingLine)) {
+                updated.add(existingLine);
+            }
+        }
+        updated.add(line);
+        return new ItemLore(updated);
+    }
+
+    private static boolean isTagged(Component line) {
+        return MARKER.equals(line.getStyle().getInsertion());
+    }
+
+    private static boolean isLegacyLine(Component line) {
+        String text = line.getString();
+        return text.startsWith("Lodestone: ") || text.startsWith("● ") || LEGACY_COORDINATES.matcher(text).matches();
+    }
+
+    private static Component getLine(BlockPos pos, int circleColor, boolean lodestoneExists) {
+        LineKey key = new LineKey(pos.asLong(), circleColor, lodestoneExists);
+        Component line = LINES.get(key);
+        if (line == null) {
+            if (LINES.size() >= MAX_CACHED_LINES) {
+                LINES.clear();
+            }
+            line = createLine(pos, circleColor, lodestoneExists);
+            LINES.put(key, line);
+        }
+        return line;
+    }
+
+    private static Component createLine(BlockPos pos, int circleColor, boolean lodestoneExists) {
+        // Broken lodestones show the coordinates in the same dark grey as the circle
+        int coordinateColor = lodestoneExists ? EXISTING_COORDINATE_COLOR : circleColor;
+        return Component.empty()
+                .withStyle(style -> style.withInsertion(MARKER))
+                .append(Component.literal("● ").withStyle(style -> style.withColor(circleColor).withItalic(false)))
+                .append(Component.literal(pos.getX() + ", " + pos.getY() + ", " + pos.getZ())
+                        .withStyle(style -> style.withColor(coordinateColor).withItalic(false)));
+    }
+}
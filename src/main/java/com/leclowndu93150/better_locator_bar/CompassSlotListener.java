@@ -0,0 +1,50 @@
+package com.leclowndu93150.better_locator_bar;
+
+import net.minecraft.world.entity.player.Inventory;
+import net.minecraft.world.inventory.AbstractContainerMenu;
+import net.minecraft.world.inventory.ContainerListener;
+import net.minecraft.world.inventory.Slot;
+import net.minecraft.world.item.ItemStack;
+
+import java.util.BitSet;
+
+/**
+ * Marks tracked player inventory slots as dirty whenever a menu reports a slot change,
+ * so the compass tracker only has to look at slots that actually changed.
+ * <p>
+ * Menus report changes from their next broadcast with a copy of the stack, so the tracker's own lore
+ * writes are recognised by comparing against the stack it last wrote to the slot rather than by identity.
+ */
+public class CompassSlotListener implements ContainerListener {
+    private final Inventory inventory;
+    private final BitSet dirtySlots;
+    private final ItemStack[] ownWrites;
+
+    /**
+     * @param ownWrites the stack the tracker last wrote to each tracked slot, or null
+     */
+    public CompassSlotListener(Inventory inventory, BitSet dirtySlots, ItemStack[] ownWrites) {
+        this.inventory = inventory;
+        this.dirtySlots = dirtySlots;
+        this.ownWrites = ownWrites;
+    }
+
+    @Override
+    public void slotChanged(AbstractContainerMenu menu, int slotIndex, ItemStack stack) {
+        Slot slot = menu.getSlot(slotIndex);
+        if (slot.container != inventory) return;
+
+        int trackedSlot = LodestoneCompassTracker.toTrackedSlot(slot.getContainerSlot());
+        if (trackedSlot < 0) return;
+
+        ItemStack ownWrite = ownWrites[trackedSlot];
+        if (ownWrite != null && ItemStack.matches(ownWrite, stack)) return;
+
+        ownWrites[trackedSlot] = null;
+        dirtySlots.set(trackedSlot);
+    }
+
+    @Override
+    public void dataChanged(AbstractContainerMenu menu, int dataSlotIndex, int value) {
+    }
+}
@@ -0,0 +1,61 @@
+package com.leclowndu93150.better_locator_bar;
+
+import net.neoforged.neoforge.common.ModConfigSpec;
+
+public class Config {
+    private static final ModConfigSpec.Builder BUILDER = new ModConfigSpec.Builder();
+
+    public static final ModConfigSpec.BooleanValue DIRTY_SLOT_TRACKING = BUILDER
+            .comment("Only reprocess inventory slots that actually changed instead of rescanning every slot every 20 ticks")
+            .define("dirtySlotTracking", true);
+
+    public static final ModConfigSpec.IntValue SAFETY_SWEEP_INTERVAL = BUILDER
+            .comment("Ticks between full inventory sweeps when dirty slot tracking is enabled")
+            .defineInRange("safetySweepInterval", 200, 20, 72000);
+
+    public static final ModConfigSpec.IntValue SLOT_BUDGET_PER_TICK = BUILDER
+            .comment("Number of inventory slots processed per server tick, split equally between the players; leftover work carries over to the next tick")
+            .defineInRange("slotBudgetPerTick", 512, 37, Integer.MAX_VALUE);
+
+    public static final ModConfigSpec.IntValue EXISTENCE_CACHE_TTL = BUILDER
+            .comment("Ticks a cached lodestone existence check stays valid before the block is looked at again")
+            .defineInRange("existenceCacheTtl", 1200, 1, 72000);
+
+    public static final ModConfigSpec.BooleanValue ASYNC_CHUNK_VERIFICATION = BUILDER
+            .comment("Only read already loaded chunks when verifying lodestones and look up unloaded ones asynchronously")
+            .define("asyncChunkVerification", true);
+
+    public static final ModConfigSpec.BooleanValue SHARED_TRANSMITTERS = BUILDER
+            .comment("Use one waypoint transmitter per lodestone for all players holding a compass for it instead of one per player and lodestone")
+            .define("sharedTransmitters", true);
+
+    public static final ModConfigSpec.BooleanValue NESTED_CONTAINER_TRACKING = BUILDER
+            .comment("Also show waypoints for lodestone compasses inside shulker boxes, bundles and the ender chest")
+            .define("nestedContainerTracking", false);
+
+    public static final ModConfigSpec.IntValue REGISTRY_SAVE_DELAY = BUILDER
+            .comment("Milliseconds lodestone colour changes are collected before the region files are written in the background")
+            .defineInRange("registrySaveDelay", 5000, 0, 600000);
+
+    public static final ModConfigSpec.IntValue JOURNAL_COMPACTION_THRESHOLD = BUILDER
+            .comment("Number of journaled lodestone colour changes after which a region's journal is folded back into its region file")
+            .defineInRange("journalCompactionThreshold", 4096, 1, Integer.MAX_VALUE);
+
+    public static final ModConfigSpec.IntValue REGION_IDLE_TICKS = BUILDER
+            .comment("Ticks a region of lodestone colours stays loaded after it was last used")
+            .defineInRange("regionIdleTicks", 6000, 1200, Integer.MAX_VALUE);
+
+    public static final ModConfigSpec.IntValue ORPHAN_SWEEP_INTERVAL = BUILDER
+            .comment("Ticks between passes that remove lodestone colours whose lodestone no longer exists")
+            .defineInRange("orphanSweepInterval", 6000, 20, Integer.MAX_VALUE);
+
+    public static final ModConfigSpec.IntValue ORPHAN_SWEEP_BUDGET = BUILDER
+            .comment("Lodestone colours checked per tick during an orphan sweep pass")
+            .defineInRange("orphanSweepBudget", 64, 1, Integer.MAX_VALUE);
+
+    public static final ModConfigSpec.BooleanValue CHUNK_LOAD_DISCOVERY = BUILDER
+            .comment("Assign colours to lodestones found in loaded chunks that were not placed while the mod was running")
+            .define("chunkLoadDiscovery", true);
+
+    static final ModConfigSpec SPEC = BUILDER.build();
+}
@@ -0,0 +1,39 @@
+package com.leclowndu93150.better_locator_bar;
+
+import net.minecraft.core.BlockPos;
+import net.minecraft.core.SectionPos;
+import net.minecraft.world.level.block.Blocks;
+import net.minecraft.world.level.chunk.ChunkAccess;
+import net.minecraft.world.level.chunk.LevelChunkSection;
+
+import java.util.function.Consumer;
+
+/**
+ * Finds the lodestones in a loaded chunk, so lodestones that were never placed while the mod was
+ * running (older worlds, structures, pasted schematics) still get a colour. A section's block state
+ * palette is checked first and only sections that can contain a lodestone are scanned block by block.
+ */
+public class LodestoneChunkScanner {
+    public static void forEachLodestone(ChunkAccess chunk, Consumer<BlockPos> action) {
+        LevelChunkSection[] sections = chunk.getSections();
+        int minX = chunk.getPos().getMinBlockX();
+        int minZ = chunk.getPos().getMinBlockZ();
+        BlockPos.MutableBlockPos pos = new BlockPos.MutableBlockPos();
+
+        for (int index = 0; index < sections.length; index++) {
+            LevelChunkSection section = sections[index];
+            if (section.hasOnlyAir() || !section.maybeHas(state -> state.is(Blocks.LODESTONE))) continue;
+
+            int minY = SectionPos.sectionToBlockCoord(chunk.getSectionYFromSectionIndex(index));
+            for (int y = 0; y < 16; y++) {
+                for (int z = 0; z < 16; z++) {
+                    for (int x = 0; x < 16; x++) {
+                        if (section.getBlockState(x, y, z).is(Blocks.LODESTONE)) {
+                            action.accept(pos.set(minX + x, minY + y, minZ + z).immutable());
+                        }
+                    }
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,235 @@
+package com.leclowndu93150.better_locator_bar;
+
+import it.unimi.dsi.fastutil.longs.Long2IntMap;
+import it.unimi.dsi.fastutil.longs.Long2IntMaps;
+import it.unimi.dsi.fastutil.longs.Long2IntOpenHashMap;
+
+import java.io.*;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The lodestone colours of one square area of a dimension, like the game's region files. Each region
+ * has its own files: a snapshot of packed positions and colours, and an append-only journal of the
+ * changes made since the snapshot was written. A region is read when it is first queried and can be
+ * dropped from memory again once it has been idle and everything queued for it is on disk.
+ * <p>
+ * The colours may be read from any thread; the files are only written from the registry's IO thread.
+ */
+public class LodestoneColorRegion {
+    // 1024 block regions: a 1000 block radius never reaches further than the neighbouring regions
+    static final int REGION_SHIFT = 10;
+    static final int NO_COLOR = -1;
+    static final byte ASSIGN_RECORD = 1;
+    static final byte REMOVE_RECORD = 2;
+    // Type byte and packed position, plus the colour for assignments
+    private static final int REMOVE_RECORD_SIZE = 1 + 8;
+    private static final int ASSIGN_RECORD_SIZE = REMOVE_RECORD_SIZE + 4;
+
+    private final Path snapshotFile;
+    private final Path journalFile;
+    private final Long2IntOpenHashMap colors = new Long2IntOpenHashMap();
+    // Only set once loading has finished, so a loaded region never makes its reader wait for the disk
+    private volatile boolean loaded;
+    private final AtomicBoolean loadQueued = new AtomicBoolean();
+    // Journal records on disk, compared against the compaction threshold
+    private int journalRecords;
+    // Records queued for the IO thread but not written yet; a region with pending records is never evicted
+    private final AtomicInteger pendingRecords = new AtomicInteger();
+    private volatile int lastAccessTick;
+
+    public record Record(byte type, long pos, int color) {}
+
+    public interface EntryConsumer {
+        void accept(long pos, int color);
+    }
+
+    LodestoneColorRegion(Path directory, int regionX, int regionZ) {
+        colors.defaultReturnValue(NO_COLOR);
+        String name = "r." + regionX + "." + regionZ;
+        this.snapshotFile = directory.resolve(name + ".dat");
+        this.journalFile = directory.resolve(name + ".journal");
+    }
+
+    public synchronized int get(long pos) {
+        ensureLoaded();
+        return colors.get(pos);
+    }
+
+    public synchronized int put(long pos, int color) {
+        ensureLoaded();
+        return colors.put(pos, color);
+    }
+
+    public synchronized int remove(long pos) {
+        ensureLoaded();
+        return colors.remove(pos);
+    }
+
+    public synchronized void forEach(EntryConsumer action) {
+        ensureLoaded();
+        for (Long2IntMap.Entry entry : Long2IntMaps.fastIterable(colors)) {
+            action.accept(entry.getLongKey(), entry.getIntValue());
+        }
+    }
+
+    public synchronized int size() {
+        return colors.size();
+    }
+
+    boolean isLoaded() {
+        return loaded;
+    }
+
+    /**
+     * Claims loading the region in the background; returns false if it is loaded or already queued.
+     */
+    boolean queueLoad() {
+        return !loaded && loadQueued.compareAndSet(false, true);
+    }
+
+    synchronized void load() {
+        ensureLoaded();
+    }
+
+    void markAccessed(int tick) {
+        lastAccessTick = tick;
+    }
+
+    void markPending() {
+        pendingRecords.incrementAndGet();
+    }
+
+    boolean isIdle(int tick, int idleTicks) {
+        return pendingRecords.get() == 0 && tick - lastAccessTick >= idleTicks;
+    }
+
+    private void ensureLoaded() {
+        if (loaded) return;
+
+        try {
+            if (Files.exists(snapshotFile)) {
+                try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(snapshotFile)))) {
+                    int count = in.readInt();
+                    colors.ensureCapacity(count);
+                    for (int i = 0; i < count; i++) {
+                        colors.put(in.readLong(), in.readInt());
+                    }
+                }
+            }
+            replayJournal();
+        } catch (Exception e) {
+            System.err.println("Failed to load lodestone color region " + snapshotFile + ": " + e.getMessage());
+        } finally {
+            loaded = true;
+        }
+    }
+
+    /**
+     * Applies the changes journaled since the snapshot was written. A record cut short by a crash
+     * ends the replay and is cut off the journal, so later appends don't start in the middle of it.
+     */
+    private void replayJournal() throws IOException {
+        if (!Files.exists(journalFile)) return;
+
+        // Length of the journal up to the end of the last complete record
+        long validLength = 0;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(journalFile)))) {
+            while (true) {
+                byte type = in.readByte();
+                long pos = in.readLong();
+                if (type == ASSIGN_RECORD) {
+                    colors.put(pos, in.readInt());
+                    validLength += ASSIGN_RECORD_SIZE;
+                } else if (type == REMOVE_RECORD) {
+                    colors.remove(pos);
+                    validLength += REMOVE_RECORD_SIZE;
+                } else {
+                    System.err.println("Unknown lodestone journal record type " + type + " in " + journalFile + ", ignoring the rest");
+                    break;
+                }
+                journalRecords++;
+            }
+        } catch (EOFException e) {
+            // End of the journal
+        }
+
+        if (Files.size(journalFile) > validLength) {
+            try (FileChannel channel = FileChannel.open(journalFile, StandardOpenOption.WRITE)) {
+                channel.truncate(validLength);
+            }
+        }
+    }
+
+    /**
+     * Appends queued records to the journal, folding it into the snapshot once it reaches the threshold.
+     * Only called on the IO thread.
+     */
+    void writeRecords(List<Record> records, int compactionThreshold) throws IOException {
+        try {
+            Files.createDirectories(journalFile.getParent());
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(journalFile,
+                    StandardOpenOption.CREATE, StandardOpenOption.APPEND)))) {
+                for (Record record : records) {
+                    out.writeByte(record.type());
+                    out.writeLong(record.pos());
+                    if (record.type() == ASSIGN_RECORD) {
+                        out.writeInt(record.color());
+                    }
+                }
+            }
+
+            int written;
+            synchronized (this) {
+                journalRecords += records.size();
+                written = journalRecords;
+            }
+            if (written >= compactionThreshold) {
+                compact();
+            }
+        } finally {
+            pendingRecords.addAndGet(-records.size());
+        }
+    }
+
+    /**
+     * Writes the region's colours to its snapshot and starts a new journal. Replaying records that were
+     * already folded in is harmless, so a crash between the two steps loses nothing.
+     * Only called on the IO thread.
+     */
+    void compact() throws IOException {
+        Long2IntOpenHashMap copy;
+        synchronized (this) {
+            ensureLoaded();
+            copy = new Long2IntOpenHashMap(colors);
+        }
+
+        Files.createDirectories(snapshotFile.getParent());
+        // Write next to the snapshot and swap it in, so a crash never leaves a truncated file behind
+        Path tempFile = snapshotFile.resolveSibling(snapshotFile.getFileName() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tempFile)))) {
+            out.writeInt(copy.size());
+            for (Long2IntMap.Entry entry : Long2IntMaps.fastIterable(copy)) {
+                out.writeLong(entry.getLongKey());
+                out.writeInt(entry.getIntValue());
+            }
+        }
+        try {
+            Files.move(tempFile, snapshotFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(tempFile, snapshotFile, StandardCopyOption.REPLACE_EXISTING);
+        }
+
+        Files.deleteIfExists(journalFile);
+        synchronized (this) {
+            journalRecords = 0;
+        }
+    }
+}
@@ -1,8 +1,14 @@
 package com.leclowndu93150.better_locator_bar;
 
+import it.unimi.dsi.fastutil.longs.Long2ObjectMap;
+import it.unimi.dsi.fastutil.longs.Long2ObjectMaps;
+import it.unimi.dsi.fastutil.longs.Long2ObjectOpenHashMap;
+import net.minecraft.core.BlockPos;
 import net.minecraft.core.GlobalPos;
+import net.minecraft.resources.ResourceKey;
 import net.minecraft.server.MinecraftServer;
-import com.google.gson.Gson;
+import net.minecraft.world.level.ChunkPos;
+import net.minecraft.world.level.Level;
 import com.google.gson.JsonObject;
 import com.google.gson.JsonParser;
 
@@ -10,14 +16,41 @@ import java.io.*;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
 
+/**
+ * Colours assigned to placed lodestones. The colours are stored per dimension in 1024 block regions
+ * (see {@link LodestoneColorRegion}) that are loaded when first queried and evicted after being idle,
+ * so startup cost and memory only depend on the areas actually in use.
+ */
 public class LodestoneColorRegistry {
+    private static final String STORAGE_DIRECTORY = "lodestone_colors";
+    // Single file formats used before regions, migrated on first load
     private static final String DATA_FILE = "lodestone_colors.json";
+    private static final String JOURNAL_FILE = "lodestone_colors.journal";
+    private static final int NO_COLOR = LodestoneColorRegion.NO_COLOR;
+    private static final int NEARBY_RADIUS = 1000;
+    private static final int EVICTION_INTERVAL = 1200;
     private static LodestoneColorRegistry INSTANCE;
     
-    // Map of lodestone position to assigned color
-    private final Map<GlobalPos, Integer> lodestoneColors = new ConcurrentHashMap<>();
+    // Writes the region files off the server thread; a single thread keeps the writes in order
+    private static final ScheduledExecutorService IO_EXECUTOR = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "Better Locator Bar IO");
+        thread.setDaemon(true);
+        return thread;
+    });
+    
+    // Regions per dimension, keyed by ChunkPos.asLong(regionX, regionZ)
+    private final Map<ResourceKey<Level>, Long2ObjectMap<LodestoneColorRegion>> regions = new ConcurrentHashMap<>();
+    private Path storageDirectory;
+    // Server ticks since the registry was created, used to find idle regions
+    private volatile int currentTick;
     
     // Available colors for lodestones (vibrant colors that work well as waypoint indicators)
     private static final List<Integer> AVAILABLE_COLORS = Arrays.asList(
@@ -45,21 +78,79 @@ public class LodestoneColorRegistry {
     
     private final Random colorRandom = new Random();
     
-    private final Gson gson = new Gson();
-    private Path dataFile;
+    // The scheduled save, or null if everything is written or a save has already started
+    private ScheduledFuture<?> pendingSave;
+    
+    // Each change is appended to its region's journal, so an edit costs one small record instead of
+    // rewriting the region. A region's journal is folded into its snapshot once it grows too long.
+    private record PendingRecord(LodestoneColorRegion region, LodestoneColorRegion.Record record) {}
+    private final Queue<PendingRecord> pendingRecords = new ConcurrentLinkedQueue<>();
     
     private LodestoneColorRegistry() {}
     
     public static LodestoneColorRegistry get(MinecraftServer server) {
         if (INSTANCE == null) {
             INSTANCE = new LodestoneColorRegistry();
-            INSTANCE.dataFile = server.getServerDirectory().resolve(DATA_FILE);
-            INSTANCE.load();
+            INSTANCE.storageDirectory = server.getServerDirectory().resolve(STORAGE_DIRECTORY);
+            INSTANCE.migrateLegacyFiles(server.getServerDirectory());
         }
         return INSTANCE;
     }
     
-    private void load() {
+    private LodestoneColorRegion getRegion(GlobalPos pos) {
+        int regionX = pos.pos().getX() >> LodestoneColorRegion.REGION_SHIFT;
+        int regionZ = pos.pos().getZ() >> LodestoneColorRegion.REGION_SHIFT;
+        return getRegion(pos.dimension(), regionX, regionZ);
+    }
+    
+    private LodestoneColorRegion getRegion(ResourceKey<Level> dimension, int regionX, int regionZ) {
+        LodestoneColorRegion region = regions.computeIfAbsent(dimension, k -> Long2ObjectMaps.synchronize(new Long2ObjectOpenHashMap<>()))
+                .computeIfAbsent(ChunkPos.asLong(regionX, regionZ), k -> new LodestoneColorRegion(getDimensionDirectory(dimension), regionX, regionZ));
+        region.markAccessed(currentTick);
+        return region;
+    }
+    
+    private Path getDimensionDirectory(ResourceKey<Level> dimension) {
+        return storageDirectory.resolve(dimension.location().getNamespace()).resolve(dimension.location().getPath());
+    }
+    
+    /**
+     * Moves the colours from the old single file storage into region files, then renames the old files
+     * so this only happens once.
+     */
+    private void migrateLegacyFiles(Path serverDirectory) {
+        Path dataFile = serverDirectory.resolve(DATA_FILE);
+        Path journalFile = serverDirectory.resolve(JOURNAL_FILE);
+        if (!Files.exists(dataFile) && !Files.exists(journalFile)) {
+            return;
+        }
+        
+        Map<GlobalPos, Integer> legacyColors = new HashMap<>();
+        loadLegacySnapshot(dataFile, legacyColors);
+        replayLegacyJournal(journalFile, legacyColors);
+        
+        Set<LodestoneColorRegion> touched = new HashSet<>();
+        for (Map.Entry<GlobalPos, Integer> entry : legacyColors.entrySet()) {
+            LodestoneColorRegion region = getRegion(entry.getKey());
+            region.put(entry.getKey().pos().asLong(), entry.getValue());
+            touched.add(region);
+        }
+        
+        try {
+            for (LodestoneColorRegion region : touched) {
+                region.compact();
+            }
+            for (Path legacyFile : List.of(dataFile, journalFile)) {
+                if (Files.exists(legacyFile)) {
+                    Files.move(legacyFile, legacyFile.resolveSibling(legacyFile.getFileName() + ".migrated"));
+                }
+            }
+        } catch (Exception e) {
+            System.err.println("Failed to migrate lodestone colors: " + e.getMessage());
+        }
+    }
+    
+    private void loadLegacySnapshot(Path dataFile, Map<GlobalPos, Integer> colors) {
         if (!Files.exists(dataFile)) {
             return;
         }
@@ -84,9 +175,9 @@ public class LodestoneColorRegistry {
                             net.minecraft.resources.ResourceLocation dimensionLoc = net.minecraft.resources.ResourceLocation.parse(dimension);
                             net.minecraft.resources.ResourceKey<net.minecraft.world.level.Level> levelKey = 
                                 net.minecraft.resources.ResourceKey.create(net.minecraft.core.registries.Registries.DIMENSION, dimensionLoc);
-                            GlobalPos pos = GlobalPos.of(levelKey, new net.minecraft.core.BlockPos(x, y, z));
+                            GlobalPos pos = GlobalPos.of(levelKey, new BlockPos(x, y, z));
                             
-                            lodestoneColors.put(pos, color);
+                            colors.put(pos, color);
                         }
                     } catch (Exception e) {
                         System.err.println("Failed to parse lodestone entry: " + key);
@@ -98,23 +189,112 @@ public class LodestoneColorRegistry {
         }
     }
     
-    private void save() {
-        try {
-            JsonObject root = new JsonObject();
-            JsonObject lodestones = new JsonObject();
-            
-            for (Map.Entry<GlobalPos, Integer> entry : lodestoneColors.entrySet()) {
-                GlobalPos pos = entry.getKey();
-                String key = pos.dimension().location().toString() + "|" + 
-                           pos.pos().getX() + "|" + pos.pos().getY() + "|" + pos.pos().getZ();
-                lodestones.addProperty(key, entry.getValue());
+    private void replayLegacyJournal(Path journalFile, Map<GlobalPos, Integer> colors) {
+        if (!Files.exists(journalFile)) {
+            return;
+        }
+        
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(journalFile)))) {
+            while (true) {
+                byte type = in.readByte();
+                net.minecraft.resources.ResourceKey<net.minecraft.world.level.Level> levelKey = net.minecraft.resources.ResourceKey.create(
+                        net.minecraft.core.registries.Registries.DIMENSION, net.minecraft.resources.ResourceLocation.parse(in.readUTF()));
+                GlobalPos pos = GlobalPos.of(levelKey, BlockPos.of(in.readLong()));
+                
+                if (type == LodestoneColorRegion.ASSIGN_RECORD) {
+                    colors.put(pos, in.readInt());
+                } else if (type == LodestoneColorRegion.REMOVE_RECORD) {
+                    colors.remove(pos);
+                } else {
+                    break;
+                }
             }
-            
-            root.add("lodestones", lodestones);
-            
-            Files.writeString(dataFile, gson.toJson(root));
+        } catch (EOFException e) {
+            // End of the journal
         } catch (Exception e) {
-            System.err.println("Failed to save lodestone colors: " + e.getMessage());
+            System.err.println("Failed to replay lodestone color journal: " + e.getMessage());
+        }
+    }
+    
+    /**
+     * Queues a journal record for the region and schedules a save. Changes within the configured delay
+     * are coalesced into a single append per region.
+     */
+    private synchronized void save(LodestoneColorRegion region, LodestoneColorRegion.Record record) {
+        region.markPending();
+        pendingRecords.add(new PendingRecord(region, record));
+        if (pendingSave == null) {
+            pendingSave = IO_EXECUTOR.schedule(this::writeRecords, Config.REGISTRY_SAVE_DELAY.getAsInt(), TimeUnit.MILLISECONDS);
+        }
+    }
+    
+    /**
+     * Writes any pending changes and waits until they are written.
+     */
+    public void flush() {
+        boolean hadPendingSave;
+        synchronized (this) {
+            hadPendingSave = pendingSave != null && pendingSave.cancel(false);
+            pendingSave = null;
+        }
+        
+        try {
+            // Also waits for a save that was already being written
+            IO_EXECUTOR.submit(hadPendingSave ? this::writeRecords : () -> {}).get();
+        } catch (Exception e) {
+            System.err.println("Failed to flush lodestone colors: " + e.getMessage());
+        }
+    }
+    
+    /**
+     * Writes any pending changes on server stop and forgets the instance, so the next server loads
+     * its own data.
+     */
+    public static void onServerStopping() {
+        if (INSTANCE != null) {
+            INSTANCE.flush();
+            INSTANCE = null;
+        }
+    }
+    
+    /**
+     * Advances the registry's clock and periodically drops regions that have not been used for the
+     * configured time and have nothing left to write.
+     */
+    public static void onServerTick() {
+        LodestoneColorRegistry registry = INSTANCE;
+        if (registry == null) return;
+        
+        int tick = ++registry.currentTick;
+        if (tick % EVICTION_INTERVAL != 0) return;
+        
+        int idleTicks = Config.REGION_IDLE_TICKS.getAsInt();
+        for (Long2ObjectMap<LodestoneColorRegion> dimension : registry.regions.values()) {
+            synchronized (dimension) {
+                dimension.values().removeIf(region -> region.isIdle(tick, idleTicks));
+            }
+        }
+    }
+    
+    private void writeRecords() {
+        synchronized (this) {
+            // Changes from here on schedule another save
+            pendingSave = null;
+        }
+        
+        Map<LodestoneColorRegion, List<LodestoneColorRegion.Record>> byRegion = new LinkedHashMap<>();
+        PendingRecord pending;
+        while ((pending = pendingRecords.poll()) != null) {
+            byRegion.computeIfAbsent(pending.region(), k -> new ArrayList<>()).add(pending.record());
+        }
+        
+        int compactionThreshold = Config.JOURNAL_COMPACTION_THRESHOLD.getAsInt();
+        for (Map.Entry<LodestoneColorRegion, List<LodestoneColorRegion.Record>> entry : byRegion.entrySet()) {
+            try {
+                entry.getKey().writeRecords(entry.getValue(), compactionThreshold);
+            } catch (Exception e) {
+                System.err.println("Failed to write lodestone color journal: " + e.getMessage());
+            }
         }
     }
     
@@ -123,15 +303,17 @@ public class LodestoneColorRegistry {
      * If the lodestone already has a color, returns the existing one.
      */
     public int assignColorToLodestone(GlobalPos pos) {
-        Integer existingColor = lodestoneColors.get(pos);
-        if (existingColor != null) {
+        LodestoneColorRegion region = getRegion(pos);
+        long packedPos = pos.pos().asLong();
+        int existingColor = region.get(packedPos);
+        if (existingColor != NO_COLOR) {
             return existingColor;
         }
         
         // Choose a random color that's not heavily used nearby
         int chosenColor = selectBestColor(pos);
-        lodestoneColors.put(pos, chosenColor);
-        save();
+        region.put(packedPos, chosenColor);
+        save(region, new LodestoneColorRegion.Record(LodestoneColorRegion.ASSIGN_RECORD, packedPos, chosenColor));
         
         return chosenColor;
     }
@@ -140,16 +322,81 @@ public class LodestoneColorRegistry {
      * Gets the color assigned to a lodestone, or null if none assigned.
      */
     public Integer getLodestoneColor(GlobalPos pos) {
-        return lodestoneColors.get(pos);
+        int color = getColor(pos, NO_COLOR);
+        return color != NO_COLOR ? color : null;
+    }
+    
+    /**
+     * Gets the color assigned to a lodestone without boxing, or {@code defaultColor} if none assigned.
+     */
+    public int getColor(GlobalPos pos, int defaultColor) {
+        int color = getRegion(pos).get(pos.pos().asLong());
+        return color != NO_COLOR ? color : defaultColor;
+    }
+    
+    /**
+     * Gets the color assigned to a lodestone if its region is already in memory. Otherwise the region
+     * starts loading in the background and {@code defaultColor} is returned, so the caller never waits
+     * for the disk.
+     */
+    public int getLoadedColor(GlobalPos pos, int defaultColor) {
+        LodestoneColorRegion region = getRegion(pos);
+        if (!region.isLoaded()) {
+            if (region.queueLoad()) {
+                IO_EXECUTOR.execute(region::load);
+            }
+            return defaultColor;
+        }
+        int color = region.get(pos.pos().asLong());
+        return color != NO_COLOR ? color : defaultColor;
     }
     
     /**
      * Removes the color assignment when a lodestone is broken.
      */
     public void removeLodestone(GlobalPos pos) {
-        if (lodestoneColors.remove(pos) != null) {
-            save();
+        LodestoneColorRegion region = getRegion(pos);
+        long packedPos = pos.pos().asLong();
+        if (region.remove(packedPos) != NO_COLOR) {
+            save(region, new LodestoneColorRegion.Record(LodestoneColorRegion.REMOVE_RECORD, packedPos, 0));
+        }
+    }
+    
+    /**
+     * The regions within {@link #NEARBY_RADIUS} of a position, which assigning a colour to a lodestone there reads.
+     */
+    private List<LodestoneColorRegion> getRegionsAround(GlobalPos pos) {
+        BlockPos center = pos.pos();
+        int minRegionX = (center.getX() - NEARBY_RADIUS) >> LodestoneColorRegion.REGION_SHIFT;
+        int maxRegionX = (center.getX() + NEARBY_RADIUS) >> LodestoneColorRegion.REGION_SHIFT;
+        int minRegionZ = (center.getZ() - NEARBY_RADIUS) >> LodestoneColorRegion.REGION_SHIFT;
+        int maxRegionZ = (center.getZ() + NEARBY_RADIUS) >> LodestoneColorRegion.REGION_SHIFT;
+        
+        List<LodestoneColorRegion> around = new ArrayList<>();
+        for (int regionX = minRegionX; regionX <= maxRegionX; regionX++) {
+            for (int regionZ = minRegionZ; regionZ <= maxRegionZ; regionZ++) {
+                around.add(getRegion(pos.dimension(), regionX, regionZ));
+            }
+        }
+        return around;
+    }
+    
+    /**
+     * Loads the regions that assigning a colour to a lodestone at the position reads on the IO thread,
+     * so the assignment doesn't read them from disk on the server thread. Completes right away if they
+     * are all in memory.
+     */
+    public CompletableFuture<Void> loadRegionsAround(GlobalPos pos) {
+        List<LodestoneColorRegion> unloaded = new ArrayList<>();
+        for (LodestoneColorRegion region : getRegionsAround(pos)) {
+            if (!region.isLoaded()) {
+                unloaded.add(region);
+            }
+        }
+        if (unloaded.isEmpty()) {
+            return CompletableFuture.completedFuture(null);
         }
+        return CompletableFuture.runAsync(() -> unloaded.forEach(LodestoneColorRegion::load), IO_EXECUTOR);
     }
     
     /**
@@ -157,22 +404,22 @@ public class LodestoneColorRegistry {
      * that are already used by nearby lodestones in the same dimension.
      */
     private int selectBestColor(GlobalPos newPos) {
-        // Count usage of each color in the same dimension within 1000 blocks
+        // Count usage of each color within 1000 blocks; only the regions around the new lodestone are visited
         Map<Integer, Integer> colorUsage = new HashMap<>();
-        
-        for (Map.Entry<GlobalPos, Integer> entry : lodestoneColors.entrySet()) {
-            GlobalPos existingPos = entry.getKey();
-            
-            // Only consider lodestones in the same dimension
-            if (existingPos.dimension().equals(newPos.dimension())) {
-                double distance = newPos.pos().distSqr(existingPos.pos());
+        BlockPos center = newPos.pos();
+        for (LodestoneColorRegion region : getRegionsAround(newPos)) {
+            region.forEach((packedPos, color) -> {
+                double dx = BlockPos.getX(packedPos) - center.getX();
+                double dy = BlockPos.getY(packedPos) - center.getY();
+                double dz = BlockPos.getZ(packedPos) - center.getZ();
+                double distance = dx * dx + dy * dy + dz * dz;
                 
                 // Weight colors based on distance (closer = more weight against using that color)
-                if (distance < 1000000) { // Within 1000 blocks
+                if (distance < (double) NEARBY_RADIUS * NEARBY_RADIUS) {
                     int weight = (int) Math.max(1, 10 - (distance / 100000)); // Closer = higher weight
-                    colorUsage.merge(entry.getValue(), weight, Integer::sum);
+                    colorUsage.merge(color, weight, Integer::sum);
                 }
-            }
+            });
         }
         
         // Find the least used color
@@ -191,16 +438,30 @@ public class LodestoneColorRegistry {
     }
     
     /**
-     * Gets all registered lodestone positions (for debugging/admin purposes).
+     * Gets the lodestone positions in the regions currently in memory, not the whole world. Regions
+     * that are not loaded are skipped rather than read from disk.
      */
-    public Set<GlobalPos> getAllLodestones() {
-        return new HashSet<>(lodestoneColors.keySet());
+    public Set<GlobalPos> getLoadedLodestones() {
+        Set<GlobalPos> lodestones = new HashSet<>();
+        for (Map.Entry<ResourceKey<Level>, Long2ObjectMap<LodestoneColorRegion>> dimension : regions.entrySet()) {
+            for (LodestoneColorRegion region : List.copyOf(dimension.getValue().values())) {
+                if (!region.isLoaded()) continue;
+                region.forEach((pos, color) -> lodestones.add(GlobalPos.of(dimension.getKey(), BlockPos.of(pos))));
+            }
+        }
+        return lodestones;
     }
     
     /**
-     * Gets the total number of registered lodestones.
+     * Gets the number of lodestones in the regions currently in memory, not the whole world.
      */
-    public int getLodestoneCount() {
-        return lodestoneColors.size();
+    public int getLoadedLodestoneCount() {
+        int count = 0;
+        for (Long2ObjectMap<LodestoneColorRegion> dimension : regions.values()) {
+            for (LodestoneColorRegion region : List.copyOf(dimension.values())) {
+                count += region.size();
+            }
+        }
+        return count;
     }
-}
\ No newline at end of file
+}
@@ -3,48 +3,120 @@ package com.leclowndu93150.better_locator_bar;
 import net.minecraft.core.BlockPos;
 import net.minecraft.core.GlobalPos;
 import net.minecraft.core.component.DataComponents;
-import net.minecraft.network.chat.Component;
+import net.minecraft.world.entity.player.Inventory;
 import net.minecraft.world.entity.player.Player;
 import net.minecraft.server.level.ServerLevel;
 import net.minecraft.server.level.ServerPlayer;
+import net.minecraft.world.inventory.AbstractContainerMenu;
 import net.minecraft.world.item.ItemStack;
 import net.minecraft.world.item.Items;
+import net.minecraft.world.item.component.BundleContents;
+import net.minecraft.world.item.component.ItemContainerContents;
 import net.minecraft.world.item.component.ItemLore;
 import net.minecraft.world.item.component.LodestoneTracker;
-import net.minecraft.world.level.block.Blocks;
 import net.minecraft.world.waypoints.Waypoint;
 
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
 
 public class LodestoneCompassTracker {
-    private static final Map<UUID, Map<GlobalPos, LodestoneWaypointTransmitter>> playerWaypoints = new ConcurrentHashMap<>();
-    private static final Map<UUID, Integer> playerTickCounters = new ConcurrentHashMap<>();
-    private static final Map<UUID, Set<GlobalPos>> cleanedCompasses = new ConcurrentHashMap<>();
-    private static final Map<UUID, Integer> delayedProcessing = new ConcurrentHashMap<>();
+    // The 36 main inventory slots plus the offhand; the main hand is always one of the hotbar slots
+    private static final int OFFHAND_SLOT = 36;
+    private static final int TRACKED_SLOTS = 37;
+    // Extra dirty/holder bit for compasses inside container items and the ender chest
+    private static final int NESTED_SLOT = TRACKED_SLOTS;
+    private static final int DIRTY_BITS = TRACKED_SLOTS + 1;
+    // Bundles inside shulker boxes are looked into, anything deeper is not
+    private static final int MAX_NESTING_DEPTH = 1;
+    private static final int JOIN_RESCAN_DELAY = 5;
+    private static final int WAYPOINT_RANGE = 60000000;
+
+    private static final Map<UUID, PlayerState> players = new ConcurrentHashMap<>();
+    private static final CompassHolderIndex holderIndex = new CompassHolderIndex();
+    // Slots each player may process this server tick: an equal share of the budget, so players that tick
+    // late are never starved by the ones before them
+    private static int playerSlotShare = Integer.MAX_VALUE;
+    private static final LodestoneExistenceCache existenceCache = new LodestoneExistenceCache(LodestoneCompassTracker::markHoldersDirty);
+    // One transmitter per lodestone when shared transmitters are enabled
+    private static final Map<GlobalPos, LodestoneWaypointTransmitter> sharedWaypoints = new HashMap<>();
+    
+    static final int BROKEN_LODESTONE_COLOR = 0x555555;
+    static final int DEFAULT_COMPASS_COLOR = 0x55FFFF;
+    
+    /**
+     * Everything the tracker keeps for an online player. Attached once on join and dropped on leave,
+     * so the per-tick path is a single lookup working on primitive counters.
+     */
+    private static final class PlayerState {
+        final BitSet dirtySlots = new BitSet(DIRTY_BITS);
+        final LoreFingerprint[] fingerprints = new LoreFingerprint[TRACKED_SLOTS];
+        // The stack last written to each slot, so the slot listener doesn't report the tracker's own writes
+        final ItemStack[] ownWrites = new ItemStack[TRACKED_SLOTS];
+        final Map<GlobalPos, LodestoneWaypointTransmitter> waypoints = new HashMap<>();
+        // Targets whose compass changed since the last waypoint update, so their icons get refreshed
+        final Set<GlobalPos> changedTargets = new HashSet<>();
+        int sweepCounter;
+        // Ticks until the follow-up scan after joining, or 0 once it has run
+        int joinDelay = JOIN_RESCAN_DELAY;
+        // Compasses inside container items in each tracked slot and inside the ender chest
+        final NestedScan[] nestedScans = new NestedScan[TRACKED_SLOTS];
+        Map<GlobalPos, ItemStack> enderChestCompasses = Map.of();
+        int enderChestHash;
+        // Targets of all nested compasses, indexed under NESTED_SLOT
+        final Set<GlobalPos> nestedTargets = new HashSet<>();
+        final net.minecraft.world.ContainerListener enderChestListener = container -> dirtySlots.set(NESTED_SLOT);
+    }
+
+    /**
+     * The lodestone compasses found inside a container item, together with the contents component they
+     * were found in, so an unchanged container is not looked into again.
+     */
+    private record NestedScan(Object contents, int contentsHash, Map<GlobalPos, ItemStack> compasses) {
+        boolean isUnchanged(Object contents) {
+            return this.contents == contents || (contents.hashCode() == contentsHash && contents.equals(this.contents));
+        }
+    }
+
+    /**
+     * The lore state last applied to a tracked slot. A compass is only rebuilt when the stack
+     * in the slot or its desired target, existence verdict or colour differs from this.
+     */
+    private record LoreFingerprint(ItemStack stack, GlobalPos target, boolean lodestoneExists, int color) {
+        boolean matches(ItemStack stack, GlobalPos target, boolean lodestoneExists, int color) {
+            return this.stack == stack && this.lodestoneExists == lodestoneExists
+                    && this.color == color && this.target.equals(target);
+        }
+    }
 
     public void onPlayerTick(Player player) {
         if (!(player instanceof ServerPlayer serverPlayer)) return;
         
-        UUID playerId = serverPlayer.getUUID();
-        int tickCounter = playerTickCounters.getOrDefault(playerId, 0);
+        PlayerState state = players.get(serverPlayer.getUUID());
+        if (state == null) return;
         
-        if (delayedProcessing.containsKey(playerId)) {
-            int delayCounter = delayedProcessing.get(playerId);
-            if (++delayCounter >= 5) {
-                delayedProcessing.remove(playerId);
-                processPlayerCompasses(serverPlayer);
-            } else {
-                delayedProcessing.put(playerId, delayCounter);
-            }
+        if (state.joinDelay > 0 && --state.joinDelay == 0) {
+            state.dirtySlots.set(0, DIRTY_BITS);
         }
         
-        if (++tickCounter >= 20) {
-            playerTickCounters.put(playerId, 0);
-            processPlayerCompasses(serverPlayer);
-        } else {
-            playerTickCounters.put(playerId, tickCounter);
+        // With dirty slot tracking the full scan only runs as a slow safety sweep
+        if (++state.sweepCounter >= getScanInterval()) {
+            state.sweepCounter = 0;
+            state.dirtySlots.set(0, DIRTY_BITS);
         }
+        
+        processDirtySlots(serverPlayer, state);
+    }
+    
+    /**
+     * Splits the slot budget between the online players at the start of every server tick. Every player
+     * gets at least one slot, even when there are more players than the budget.
+     */
+    public void onServerTick(net.minecraft.server.MinecraftServer server) {
+        playerSlotShare = Math.max(1, Config.SLOT_BUDGET_PER_TICK.getAsInt() / Math.max(1, players.size()));
+    }
+    
+    private static int getScanInterval() {
+        return Config.DIRTY_SLOT_TRACKING.getAsBoolean() ? Config.SAFETY_SWEEP_INTERVAL.getAsInt() : 20;
     }
 
     public void onPlayerJoin(Player player) {
@@ -52,125 +124,240 @@ public class LodestoneCompassTracker {
         
         UUID playerId = serverPlayer.getUUID();
         
-        cleanedCompasses.remove(playerId);
-        playerTickCounters.put(playerId, 0);
-        updateAllCompassesOnJoin(serverPlayer);
-        delayedProcessing.put(playerId, 0);
-        processPlayerCompasses(serverPlayer);
-    }
-    
-    private void updateAllCompassesOnJoin(ServerPlayer player) {
-        boolean inventoryChanged = false;
+        PlayerState previous = players.remove(playerId);
+        if (previous != null) {
+            discardState(serverPlayer, previous);
+        }
         
+        PlayerState state = new PlayerState();
+        // Spread players over the scan interval so players joining together don't sweep on the same tick
+        state.sweepCounter = Math.floorMod(playerId.hashCode(), getScanInterval());
+        state.dirtySlots.set(0, DIRTY_BITS);
+        players.put(playerId, state);
         
-        ItemStack mainHand = player.getMainHandItem();
-        if (isLodestoneCompass(mainHand)) {
-            LodestoneTracker tracker = mainHand.get(DataComponents.LODESTONE_TRACKER);
-            if (tracker != null && tracker.target().isPresent()) {
-                GlobalPos targetPos = tracker.target().get();
-                boolean lodestoneExists = verifyLodestone(player.getServer(), targetPos);
-                ItemStack updated = mainHand.copy();
-                updateCompassLore(updated, targetPos, lodestoneExists, player);
-                player.setItemInHand(net.minecraft.world.InteractionHand.MAIN_HAND, updated);
-                inventoryChanged = true;
-            }
-        }
+        attachSlotListener(serverPlayer, state, serverPlayer.inventoryMenu);
+        attachEnderChestListener(serverPlayer, state);
+        processDirtySlots(serverPlayer, state);
+    }
+
+    /**
+     * Respawning creates a new player entity, so the inventory listener has to be re-attached.
+     */
+    public void onPlayerRespawn(Player player) {
+        if (!(player instanceof ServerPlayer serverPlayer)) return;
         
+        PlayerState state = players.get(serverPlayer.getUUID());
+        if (state == null) return;
         
-        ItemStack offHand = player.getOffhandItem();
-        if (isLodestoneCompass(offHand)) {
-            LodestoneTracker tracker = offHand.get(DataComponents.LODESTONE_TRACKER);
-            if (tracker != null && tracker.target().isPresent()) {
-                GlobalPos targetPos = tracker.target().get();
-                boolean lodestoneExists = verifyLodestone(player.getServer(), targetPos);
-                ItemStack updated = offHand.copy();
-                updateCompassLore(updated, targetPos, lodestoneExists, player);
-                player.setItemSlot(net.minecraft.world.entity.EquipmentSlot.OFFHAND, updated);
-                inventoryChanged = true;
-            }
+        attachSlotListener(serverPlayer, state, serverPlayer.inventoryMenu);
+        attachEnderChestListener(serverPlayer, state);
+        state.dirtySlots.set(0, DIRTY_BITS);
+        // The player may have respawned in another dimension
+        updatePlayerWaypoints(serverPlayer, state, collectTargets(serverPlayer, state));
+    }
+
+    /**
+     * Drops the waypoints for targets in the dimension the player left and creates the ones for the
+     * dimension they arrived in, in a single pass over the player's waypoints.
+     */
+    public void onPlayerChangedDimension(Player player) {
+        if (!(player instanceof ServerPlayer serverPlayer)) return;
+        
+        PlayerState state = players.get(serverPlayer.getUUID());
+        if (state != null) {
+            updatePlayerWaypoints(serverPlayer, state, collectTargets(serverPlayer, state));
         }
+    }
+
+    /**
+     * Other menus (chests, crafting tables, ...) also expose the player inventory slots,
+     * and while one is open the inventory menu itself does not broadcast changes.
+     */
+    public void onContainerOpened(Player player, AbstractContainerMenu menu) {
+        if (!(player instanceof ServerPlayer serverPlayer)) return;
         
+        PlayerState state = players.get(serverPlayer.getUUID());
+        if (state != null && menu != serverPlayer.inventoryMenu) {
+            attachSlotListener(serverPlayer, state, menu);
+        }
+    }
+    
+    private void attachSlotListener(ServerPlayer player, PlayerState state, AbstractContainerMenu menu) {
+        if (!Config.DIRTY_SLOT_TRACKING.getAsBoolean()) return;
         
-        for (int i = 0; i < 36; i++) {
-            ItemStack stack = player.getInventory().getItem(i);
-            if (isLodestoneCompass(stack)) {
-                LodestoneTracker tracker = stack.get(DataComponents.LODESTONE_TRACKER);
-                if (tracker != null && tracker.target().isPresent()) {
-                    GlobalPos targetPos = tracker.target().get();
-                    boolean lodestoneExists = verifyLodestone(player.getServer(), targetPos);
-                    ItemStack updated = stack.copy();
-                    updateCompassLore(updated, targetPos, lodestoneExists, player);
-                    player.getInventory().setItem(i, updated);
-                    inventoryChanged = true;
-                }
+        menu.addSlotListener(new CompassSlotListener(player.getInventory(), state.dirtySlots, state.ownWrites));
+    }
+    
+    /**
+     * The ender chest contents are kept across respawns, so the listener is removed before adding it
+     * to make sure it is only registered once.
+     */
+    private void attachEnderChestListener(ServerPlayer player, PlayerState state) {
+        player.getEnderChestInventory().removeListener(state.enderChestListener);
+        if (Config.NESTED_CONTAINER_TRACKING.getAsBoolean()) {
+            player.getEnderChestInventory().addListener(state.enderChestListener);
+        }
+    }
+    
+    /**
+     * Queues a rescan of every slot holding a compass that points at the given lodestone.
+     */
+    private static void markHoldersDirty(GlobalPos lodestonePos) {
+        for (Map.Entry<UUID, BitSet> entry : holderIndex.getHolders(lodestonePos).entrySet()) {
+            PlayerState state = players.get(entry.getKey());
+            if (state != null) {
+                state.dirtySlots.or(entry.getValue());
             }
         }
-        
-        
-        if (inventoryChanged) {
-            player.inventoryMenu.sendAllDataToRemote();
+    }
+
+    /**
+     * Maps an inventory container slot to the tracker's slot index, or -1 if the slot is not tracked.
+     */
+    static int toTrackedSlot(int inventorySlot) {
+        if (inventorySlot >= 0 && inventorySlot < 36) {
+            return inventorySlot;
         }
+        return inventorySlot == Inventory.SLOT_OFFHAND ? OFFHAND_SLOT : -1;
     }
     
     public void onPlayerLeave(Player player) {
         if (!(player instanceof ServerPlayer serverPlayer)) return;
         
-        UUID playerId = serverPlayer.getUUID();
+        PlayerState state = players.remove(serverPlayer.getUUID());
+        if (state != null) {
+            discardState(serverPlayer, state);
+        }
+    }
+    
+    private void discardState(ServerPlayer player, PlayerState state) {
+        removeAllPlayerWaypoints(player, state);
+        for (int slot = 0; slot < TRACKED_SLOTS; slot++) {
+            clearFingerprint(player.getUUID(), state, slot);
+        }
         
-        removeAllPlayerWaypoints(serverPlayer);
-        playerTickCounters.remove(playerId);
-        cleanedCompasses.remove(playerId);
-        delayedProcessing.remove(playerId);
+        player.getEnderChestInventory().removeListener(state.enderChestListener);
+        Arrays.fill(state.nestedScans, null);
+        state.enderChestCompasses = Map.of();
+        refreshNestedTargets(player, state);
     }
 
-    private void processPlayerCompasses(ServerPlayer player) {
-        UUID playerId = player.getUUID();
+    /**
+     * Processes up to the player's share of the tick's slot budget. Slots that don't fit stay dirty
+     * and are carried over to the next tick.
+     */
+    private void processDirtySlots(ServerPlayer player, PlayerState state) {
+        BitSet dirty = state.dirtySlots;
+        if (dirty.isEmpty()) return;
+        
+        int budget = playerSlotShare;
+        for (int slot = dirty.nextSetBit(0); slot >= 0 && budget > 0; slot = dirty.nextSetBit(slot + 1)) {
+            dirty.clear(slot);
+            budget--;
+            processCompassInSlot(player, state, slot);
+        }
         
+        updatePlayerWaypoints(player, state, collectTargets(player, state));
+    }
+    
+    /**
+     * Collects the targets of all tracked compasses whose lodestone still exists.
+     */
+    private Set<GlobalPos> collectTargets(ServerPlayer player, PlayerState state) {
         Set<GlobalPos> currentCompassPositions = new HashSet<>();
-        
-        processCompassInSlot(player, -1, currentCompassPositions);
-        processCompassInSlot(player, -2, currentCompassPositions);
-        
-        for (int i = 0; i < 36; i++) {
-            processCompassInSlot(player, i, currentCompassPositions);
+        for (LoreFingerprint fingerprint : state.fingerprints) {
+            if (fingerprint != null && fingerprint.lodestoneExists()) {
+                currentCompassPositions.add(fingerprint.target());
+            }
         }
-        
-        updatePlayerWaypoints(player, currentCompassPositions);
+        // Nested compasses carry no lore verdict, so their targets are checked against the existence cache
+        for (GlobalPos target : state.nestedTargets) {
+            if (!currentCompassPositions.contains(target) && verifyLodestone(player.getServer(), target)) {
+                currentCompassPositions.add(target);
+            }
+        }
+        return currentCompassPositions;
     }
     
-    private void processCompassInSlot(ServerPlayer player, int slot, Set<GlobalPos> currentCompassPositions) {
-        ItemStack compass;
-        
-        if (slot == -1) {
-            compass = player.getMainHandItem();
-        } else if (slot == -2) {
-            compass = player.getOffhandItem();
+    private ItemStack getTrackedSlotItem(ServerPlayer player, int slot) {
+        return slot == OFFHAND_SLOT ? player.getOffhandItem() : player.getInventory().getItem(slot);
+    }
+    
+    private void setTrackedSlotItem(ServerPlayer player, PlayerState state, int slot, ItemStack stack) {
+        state.ownWrites[slot] = stack;
+        if (slot == OFFHAND_SLOT) {
+            player.setItemSlot(net.minecraft.world.entity.EquipmentSlot.OFFHAND, stack);
         } else {
-            compass = player.getInventory().getItem(slot);
+            player.getInventory().setItem(slot, stack);
         }
+    }
+    
+    /**
+     * Processes one tracked slot.
+     */
+    private void processCompassInSlot(ServerPlayer player, PlayerState state, int slot) {
+        if (slot == NESTED_SLOT) {
+            processEnderChest(player, state);
+            return;
+        }
+        
+        ItemStack compass = getTrackedSlotItem(player, slot);
+        updateNestedScan(player, state, slot, compass);
         
-        if (!isLodestoneCompass(compass)) return;
+        if (!isLodestoneCompass(compass)) {
+            clearFingerprint(player.getUUID(), state, slot);
+            return;
+        }
         
         LodestoneTracker tracker = compass.get(DataComponents.LODESTONE_TRACKER);
         if (tracker != null && tracker.target().isPresent()) {
             GlobalPos targetPos = tracker.target().get();
             
             boolean lodestoneExists = verifyLodestone(player.getServer(), targetPos);
-            
-            ItemStack updatedCompass = compass.copy();
-            updateCompassLore(updatedCompass, targetPos, lodestoneExists, player);
-            
-            if (slot == -1) {
-                player.setItemInHand(net.minecraft.world.InteractionHand.MAIN_HAND, updatedCompass);
-            } else if (slot == -2) {
-                player.setItemSlot(net.minecraft.world.entity.EquipmentSlot.OFFHAND, updatedCompass);
-            } else {
-                player.getInventory().setItem(slot, updatedCompass);
-            }
-            
-            if (lodestoneExists) {
-                currentCompassPositions.add(targetPos);
+            applyCompassLore(player, state, slot, compass, targetPos, lodestoneExists);
+        } else {
+            clearFingerprint(player.getUUID(), state, slot);
+        }
+    }
+
+    /**
+     * Brings the coordinate lore of the compass in a tracked slot up to date. The compass is only
+     * copied and written back when its lore actually changes, so up-to-date compasses are never resent.
+     */
+    private void applyCompassLore(ServerPlayer player, PlayerState state, int slot, ItemStack compass, GlobalPos targetPos, boolean lodestoneExists) {
+        int circleColor = lodestoneExists ? CompassColorResolver.resolveColor(compass, targetPos, player.getServer()) : BROKEN_LODESTONE_COLOR;
+        
+        LoreFingerprint fingerprint = state.fingerprints[slot];
+        if (fingerprint != null && fingerprint.matches(compass, targetPos, lodestoneExists, circleColor)) {
+            return;
+        }
+        
+        ItemLore existingLore = compass.getOrDefault(DataComponents.LORE, ItemLore.EMPTY);
+        ItemLore lore = CompassLore.apply(existingLore, targetPos.pos(), circleColor, lodestoneExists);
+        ItemStack current = compass;
+        if (lore != existingLore) {
+            current = compass.copy();
+            current.set(DataComponents.LORE, lore);
+            setTrackedSlotItem(player, state, slot, current);
+        }
+        
+        if (fingerprint == null || !fingerprint.target().equals(targetPos)) {
+            if (fingerprint != null) {
+                holderIndex.remove(fingerprint.target(), player.getUUID(), slot);
+                state.changedTargets.add(fingerprint.target());
             }
+            holderIndex.add(targetPos, player.getUUID(), slot);
+        }
+        state.changedTargets.add(targetPos);
+        state.fingerprints[slot] = new LoreFingerprint(current, targetPos, lodestoneExists, circleColor);
+    }
+    
+    private void clearFingerprint(UUID playerId, PlayerState state, int slot) {
+        LoreFingerprint fingerprint = state.fingerprints[slot];
+        if (fingerprint != null) {
+            holderIndex.remove(fingerprint.target(), playerId, slot);
+            state.changedTargets.add(fingerprint.target());
+            state.fingerprints[slot] = null;
         }
     }
 
@@ -178,55 +365,96 @@ public class LodestoneCompassTracker {
         ServerLevel targetLevel = server.getLevel(targetPos.dimension());
         if (targetLevel == null) return false;
         
-        return targetLevel.getBlockState(targetPos.pos()).is(Blocks.LODESTONE);
+        return existenceCache.isLodestone(targetLevel, targetPos.pos());
+    }
+    
+    /**
+     * Drops the cached existence verdict for a lodestone that was just placed or broken.
+     */
+    public void invalidateLodestone(GlobalPos pos) {
+        existenceCache.invalidate(pos);
+    }
+    
+    public void onBlockChanged(ServerLevel level, BlockPos pos) {
+        // Only compass targets have a cached verdict; rescan their holders right away instead of at the next sweep
+        if (existenceCache.invalidate(level.dimension(), pos)) {
+            markHoldersDirty(GlobalPos.of(level.dimension(), pos));
+        }
+    }
+    
+    public void onLevelUnload(ServerLevel level) {
+        existenceCache.clearDimension(level.dimension());
     }
 
 
-    private void updatePlayerWaypoints(ServerPlayer player, Set<GlobalPos> currentPositions) {
-        UUID playerId = player.getUUID();
-        Map<GlobalPos, LodestoneWaypointTransmitter> existingWaypoints = playerWaypoints.computeIfAbsent(playerId, k -> new ConcurrentHashMap<>());
-        Map<GlobalPos, LodestoneWaypointTransmitter> newWaypoints = new HashMap<>();
+    /**
+     * Brings the player's waypoints in line with their compasses. Only targets in the player's current
+     * dimension get a waypoint, and every waypoint is tracked in the player's current level.
+     */
+    private void updatePlayerWaypoints(ServerPlayer player, PlayerState state, Set<GlobalPos> currentPositions) {
+        Map<GlobalPos, LodestoneWaypointTransmitter> waypoints = state.waypoints;
+        ServerLevel level = player.level();
+        
+        Iterator<Map.Entry<GlobalPos, LodestoneWaypointTransmitter>> iterator = waypoints.entrySet().iterator();
+        while (iterator.hasNext()) {
+            Map.Entry<GlobalPos, LodestoneWaypointTransmitter> entry = iterator.next();
+            if (!currentPositions.contains(entry.getKey()) || entry.getKey().dimension() != level.dimension()) {
+                removeWaypoint(player.getUUID(), entry.getKey(), entry.getValue());
+                iterator.remove();
+            }
+        }
         
         for (GlobalPos pos : currentPositions) {
-            LodestoneWaypointTransmitter waypoint = existingWaypoints.get(pos);
+            if (pos.dimension() != level.dimension()) continue;
             
-            if (waypoint != null) {
-                newWaypoints.put(pos, waypoint);
-            } else {
-                waypoint = createWaypoint(player, pos);
+            LodestoneWaypointTransmitter waypoint = waypoints.get(pos);
+            if (waypoint == null) {
+                waypoint = createWaypoint(player, state, pos);
                 if (waypoint != null) {
-                    newWaypoints.put(pos, waypoint);
+                    waypoints.put(pos, waypoint);
                 }
+            } else if (waypoint.getTrackedLevel() != level) {
+                // Left behind in another level's manager, e.g. after respawning in the same dimension
+                waypoint.trackIn(level);
+            } else if (state.changedTargets.contains(pos)) {
+                // The compass behind this waypoint changed, e.g. swapped for a differently dyed one
+                refreshWaypointIcon(player, state, waypoint, pos);
             }
         }
-        
-        for (Map.Entry<GlobalPos, LodestoneWaypointTransmitter> entry : existingWaypoints.entrySet()) {
-            if (!newWaypoints.containsKey(entry.getKey())) {
-                removeWaypoint(player.level(), entry.getValue());
-            }
-        }
-        
-        if (newWaypoints.isEmpty()) {
-            playerWaypoints.remove(playerId);
-        } else {
-            playerWaypoints.put(playerId, newWaypoints);
-        }
+        state.changedTargets.clear();
     }
 
-    private LodestoneWaypointTransmitter createWaypoint(ServerPlayer player, GlobalPos targetPos) {
+    /**
+     * Adds the player as a receiver of the waypoint for the target. With shared transmitters all holders of
+     * a compass for the same lodestone receive from one transmitter, so the waypoint manager's work grows
+     * with lodestones plus holders instead of their product.
+     */
+    private LodestoneWaypointTransmitter createWaypoint(ServerPlayer player, PlayerState state, GlobalPos targetPos) {
         try {
-            ItemStack compass = findCompassForPosition(player, targetPos);
+            ItemStack compass = findCompassForPosition(player, state, targetPos);
             if (compass == null) return null;
             
             Waypoint.Icon icon = createCompassIcon(compass, targetPos, player);
-            UUID waypointId = UUID.nameUUIDFromBytes((LodestoneWaypointStyles.LODESTONE_UUID_PREFIX + player.getUUID() + "_" + targetPos.toString()).getBytes());
             
-            LodestoneWaypointTransmitter waypoint = new LodestoneWaypointTransmitter(
-                    waypointId, targetPos.pos(), icon, 60000000, player.getUUID()
-            );
+            LodestoneWaypointTransmitter waypoint;
+            if (Config.SHARED_TRANSMITTERS.getAsBoolean()) {
+                waypoint = sharedWaypoints.get(targetPos);
+                if (waypoint == null) {
+                    UUID waypointId = UUID.nameUUIDFromBytes((LodestoneWaypointStyles.LODESTONE_UUID_PREFIX + targetPos).getBytes());
+                    waypoint = new LodestoneWaypointTransmitter(waypointId, targetPos.pos(), WAYPOINT_RANGE);
+                    sharedWaypoints.put(targetPos, waypoint);
+                }
+            } else {
+                UUID waypointId = UUID.nameUUIDFromBytes((LodestoneWaypointStyles.LODESTONE_UUID_PREFIX + player.getUUID() + "_" + targetPos.toString()).getBytes());
+                waypoint = new LodestoneWaypointTransmitter(waypointId, targetPos.pos(), WAYPOINT_RANGE);
+            }
             
-            ServerLevel level = player.level();
-            level.getWaypointManager().trackWaypoint(waypoint);
+            waypoint.setIcon(player.getUUID(), icon);
+            if (waypoint.getTrackedLevel() != player.level()) {
+                waypoint.trackIn(player.level());
+            } else {
+                waypoint.pushUpdate();
+            }
             
             return waypoint;
         } catch (Exception e) {
@@ -234,26 +462,30 @@ public class LodestoneCompassTracker {
         }
     }
 
-    private void removeWaypoint(ServerLevel level, LodestoneWaypointTransmitter waypoint) {
+    /**
+     * Removes the player from the waypoint's receivers, untracking the waypoint once nobody receives it.
+     */
+    private void removeWaypoint(UUID playerId, GlobalPos targetPos, LodestoneWaypointTransmitter waypoint) {
         try {
-            level.getWaypointManager().untrackWaypoint(waypoint);
+            waypoint.removeReceiver(playerId);
+            if (waypoint.hasReceivers()) {
+                waypoint.pushUpdate();
+            } else {
+                waypoint.untrack();
+                sharedWaypoints.remove(targetPos, waypoint);
+            }
         } catch (Exception ignored) {
         }
     }
 
-    private void removeAllPlayerWaypoints(ServerPlayer player) {
-        UUID playerId = player.getUUID();
-        Map<GlobalPos, LodestoneWaypointTransmitter> waypoints = playerWaypoints.remove(playerId);
-        
-        if (waypoints != null) {
-            ServerLevel level = player.level();
-            for (LodestoneWaypointTransmitter waypoint : waypoints.values()) {
-                removeWaypoint(level, waypoint);
-            }
+    private void removeAllPlayerWaypoints(ServerPlayer player, PlayerState state) {
+        for (Map.Entry<GlobalPos, LodestoneWaypointTransmitter> entry : state.waypoints.entrySet()) {
+            removeWaypoint(player.getUUID(), entry.getKey(), entry.getValue());
         }
+        state.waypoints.clear();
     }
 
-    private ItemStack findCompassForPosition(ServerPlayer player, GlobalPos targetPos) {
+    private ItemStack findCompassForPosition(ServerPlayer player, PlayerState state, GlobalPos targetPos) {
         List<ItemStack> compasses = findAllLodestoneCompasses(player);
         
         for (ItemStack compass : compasses) {
@@ -263,6 +495,15 @@ public class LodestoneCompassTracker {
             }
         }
         
+        if (state.nestedTargets.contains(targetPos)) {
+            for (NestedScan scan : state.nestedScans) {
+                if (scan != null && scan.compasses().containsKey(targetPos)) {
+                    return scan.compasses().get(targetPos);
+                }
+            }
+            return state.enderChestCompasses.get(targetPos);
+        }
+        
         return null;
     }
 
@@ -291,174 +532,140 @@ public class LodestoneCompassTracker {
         return compasses;
     }
 
-    private boolean isLodestoneCompass(ItemStack stack) {
-        return stack.is(Items.COMPASS) && stack.has(DataComponents.LODESTONE_TRACKER);
-    }
-
-    private Waypoint.Icon createCompassIcon(ItemStack compass, GlobalPos targetPos, ServerPlayer player) {
-        Waypoint.Icon icon = new Waypoint.Icon();
-        icon.style = LodestoneWaypointStyles.LODESTONE;
-
-        // PRIORITY 1: Check for TCC dyed compass colors first
-        if (compass.has(DataComponents.ITEM_MODEL)) {
-            String itemModel = compass.get(DataComponents.ITEM_MODEL).toString();
-            if (itemModel.contains("tcc:dyed_compass/")) {
-                String colorName = itemModel.substring(itemModel.lastIndexOf("/") + 1);
-                Optional<Integer> color = getTCCCompassColor(colorName);
-                if (color.isPresent()) {
-                    icon.color = color;
-                    return icon; // TCC color takes priority, return immediately
-                }
+    /**
+     * Looks into the container item in a tracked slot, unless its contents are the same as at the last scan.
+     * Nested compasses only feed waypoints; their lore is left alone.
+     */
+    private void updateNestedScan(ServerPlayer player, PlayerState state, int slot, ItemStack stack) {
+        Object contents = Config.NESTED_CONTAINER_TRACKING.getAsBoolean() ? getContainerContents(stack) : null;
+        NestedScan previous = state.nestedScans[slot];
+        
+        if (contents == null) {
+            if (previous != null) {
+                state.nestedScans[slot] = null;
+                refreshNestedTargets(player, state);
             }
+            return;
         }
-
-        // PRIORITY 2: Use shared lodestone color if no TCC color
-        try {
-            LodestoneColorRegistry registry = LodestoneColorRegistry.get(player.getServer());
-            Integer lodestoneColor = registry.getLodestoneColor(targetPos);
-            if (lodestoneColor != null) {
-                icon.color = Optional.of(lodestoneColor);
-            }
-        } catch (Exception e) {
-            // Fallback if registry access fails - use default color
+        if (previous != null && previous.isUnchanged(contents)) return;
+        
+        Map<GlobalPos, ItemStack> compasses = new HashMap<>();
+        collectNestedCompasses(getContainerItems(contents), compasses, 0);
+        state.nestedScans[slot] = new NestedScan(contents, contents.hashCode(), compasses);
+        if (!compasses.isEmpty() || (previous != null && !previous.compasses().isEmpty())) {
+            refreshNestedTargets(player, state);
         }
-
-        return icon;
     }
-
-    private Optional<Integer> getTCCCompassColor(String colorName) {
-        return switch (colorName) {
-            case "white" -> Optional.of(0xF9FFFE);
-            case "light_gray" -> Optional.of(0x9D9D97);
-            case "gray" -> Optional.of(0x474F52);
-            case "black" -> Optional.of(0x1D1D21);
-            case "brown" -> Optional.of(0x835432);
-            case "red" -> Optional.of(0xB02E26);
-            case "orange" -> Optional.of(0xF9801D);
-            case "yellow" -> Optional.of(0xFED83D);
-            case "lime" -> Optional.of(0x80C71F);
-            case "green" -> Optional.of(0x5E7C16);
-            case "cyan" -> Optional.of(0x169C9C);
-            case "light_blue" -> Optional.of(0x3AB3DA);
-            case "blue" -> Optional.of(0x3C44AA);
-            case "purple" -> Optional.of(0x8932B8);
-            case "magenta" -> Optional.of(0xC74EBD);
-            case "pink" -> Optional.of(0xF38BAA);
-            default -> Optional.empty();
-        };
-    }
-
-    private void updateCompassLore(ItemStack compass, GlobalPos targetPos, boolean lodestoneExists, ServerPlayer player) {
-        List<Component> loreList = new ArrayList<>();
-        BlockPos pos = targetPos.pos();
-
-        // Get existing lore if present
-        if (compass.has(DataComponents.LORE)) {
-            ItemLore existingLore = compass.get(DataComponents.LORE);
-            loreList.addAll(existingLore.lines());
-        }
-
-        // Remove any existing lodestone coordinate lines
-        loreList.removeIf(line -> {
-            String lineText = line.getString();
-            return lineText.startsWith("Lodestone: ") || lineText.startsWith("● ") || 
-                   lineText.matches("^-?\\d+, -?\\d+, -?\\d+$"); // Also remove plain coordinates
-        });
-        
-        Component coordComponent;
-        if (lodestoneExists) {
-            // Lodestone exists - show colored circle with coordinates
-            int circleColor = getCompassColor(compass, targetPos, player);
-            
-            coordComponent = Component.literal("")
-                    .append(Component.literal("● ").withStyle(style -> style.withColor(circleColor).withItalic(false)))
-                    .append(Component.literal(pos.getX() + ", " + pos.getY() + ", " + pos.getZ())
-                            .withStyle(style -> style.withColor(0x999999).withItalic(false)));
-        } else {
-            // Lodestone broken - show dark gray circle and coordinates
-            coordComponent = Component.literal("")
-                    .append(Component.literal("● ").withStyle(style -> style.withColor(0x555555).withItalic(false)))
-                    .append(Component.literal(pos.getX() + ", " + pos.getY() + ", " + pos.getZ())
-                            .withStyle(style -> style.withColor(0x555555).withItalic(false)));
+    
+    /**
+     * Looks into the ender chest when its contents hash differs from the last scan.
+     */
+    private void processEnderChest(ServerPlayer player, PlayerState state) {
+        if (!Config.NESTED_CONTAINER_TRACKING.getAsBoolean()) {
+            if (!state.enderChestCompasses.isEmpty()) {
+                state.enderChestCompasses = Map.of();
+                refreshNestedTargets(player, state);
+            }
+            return;
         }
         
-        // Add the coordinate line
-        loreList.add(coordComponent);
-
-        // Update compass lore
-        compass.set(DataComponents.LORE, new ItemLore(loreList));
+        List<ItemStack> items = player.getEnderChestInventory().getItems();
+        int hash = ItemStack.hashStackList(items);
+        if (hash == state.enderChestHash) return;
+        
+        state.enderChestHash = hash;
+        Map<GlobalPos, ItemStack> compasses = new HashMap<>();
+        collectNestedCompasses(items, compasses, 0);
+        if (!compasses.isEmpty() || !state.enderChestCompasses.isEmpty()) {
+            state.enderChestCompasses = compasses;
+            refreshNestedTargets(player, state);
+        }
     }
     
-    private int getCompassColor(ItemStack compass, GlobalPos targetPos, ServerPlayer player) {
-        // Check for TCC dyed compass colors first
-        if (compass.has(DataComponents.ITEM_MODEL)) {
-            String itemModel = compass.get(DataComponents.ITEM_MODEL).toString();
-            if (itemModel.contains("tcc:dyed_compass/")) {
-                String colorName = itemModel.substring(itemModel.lastIndexOf("/") + 1);
-                Optional<Integer> color = getTCCCompassColor(colorName);
-                if (color.isPresent()) {
-                    return color.get();
+    private void collectNestedCompasses(Iterable<ItemStack> items, Map<GlobalPos, ItemStack> compasses, int depth) {
+        for (ItemStack stack : items) {
+            if (isLodestoneCompass(stack)) {
+                stack.get(DataComponents.LODESTONE_TRACKER).target().ifPresent(target -> compasses.putIfAbsent(target, stack));
+            } else if (depth < MAX_NESTING_DEPTH) {
+                Object contents = getContainerContents(stack);
+                if (contents != null) {
+                    collectNestedCompasses(getContainerItems(contents), compasses, depth + 1);
                 }
             }
         }
-
-        // Use shared lodestone color if no TCC color
-        try {
-            LodestoneColorRegistry registry = LodestoneColorRegistry.get(player.getServer());
-            Integer lodestoneColor = registry.getLodestoneColor(targetPos);
-            if (lodestoneColor != null) {
-                return lodestoneColor;
+    }
+    
+    /**
+     * Gets the contents component of a shulker box or bundle, or null for other items.
+     */
+    private static Object getContainerContents(ItemStack stack) {
+        ItemContainerContents container = stack.get(DataComponents.CONTAINER);
+        if (container != null) return container;
+        return stack.get(DataComponents.BUNDLE_CONTENTS);
+    }
+    
+    private static Iterable<ItemStack> getContainerItems(Object contents) {
+        return contents instanceof ItemContainerContents container ? container.nonEmptyItems() : ((BundleContents) contents).items();
+    }
+    
+    /**
+     * Rebuilds the set of nested compass targets and updates the holder index for the ones that changed.
+     */
+    private void refreshNestedTargets(ServerPlayer player, PlayerState state) {
+        Set<GlobalPos> targets = new HashSet<>(state.enderChestCompasses.keySet());
+        for (NestedScan scan : state.nestedScans) {
+            if (scan != null) {
+                targets.addAll(scan.compasses().keySet());
+            }
+        }
+        
+        UUID playerId = player.getUUID();
+        for (GlobalPos target : state.nestedTargets) {
+            if (!targets.contains(target)) {
+                holderIndex.remove(target, playerId, NESTED_SLOT);
+                state.changedTargets.add(target);
+            }
+        }
+        for (GlobalPos target : targets) {
+            if (!state.nestedTargets.contains(target)) {
+                holderIndex.add(target, playerId, NESTED_SLOT);
+                state.changedTargets.add(target);
             }
-        } catch (Exception e) {
-            // Fallback if registry access fails
         }
+        state.nestedTargets.clear();
+        state.nestedTargets.addAll(targets);
+    }
 
-        // Default color
-        return 0x55FFFF;
+    private boolean isLodestoneCompass(ItemStack stack) {
+        return stack.is(Items.COMPASS) && stack.has(DataComponents.LODESTONE_TRACKER);
     }
-    
+
+    private Waypoint.Icon createCompassIcon(ItemStack compass, GlobalPos targetPos, ServerPlayer player) {
+        Waypoint.Icon icon = new Waypoint.Icon();
+        icon.style = LodestoneWaypointStyles.LODESTONE;
+        icon.color = CompassColorResolver.resolveIconColor(compass, targetPos, player.getServer());
+        return icon;
+    }
+
     /**
      * Immediately updates all compasses pointing to a broken lodestone.
      * Called when a lodestone block is broken.
      */
     public void updateCompassesForBrokenLodestone(GlobalPos brokenPos, net.minecraft.server.MinecraftServer server) {
-        // Loop through all online players
-        for (ServerPlayer player : server.getPlayerList().getPlayers()) {
-            boolean inventoryChanged = false;
-            
-            
-            ItemStack mainHand = player.getMainHandItem();
-            if (isCompassPointingTo(mainHand, brokenPos)) {
-                ItemStack updated = mainHand.copy();
-                updateCompassLore(updated, brokenPos, false, player);
-                player.setItemInHand(net.minecraft.world.InteractionHand.MAIN_HAND, updated);
-                inventoryChanged = true;
-            }
-            
+        // Only the indexed holders of this lodestone can have a compass pointing at it
+        for (Map.Entry<UUID, BitSet> entry : List.copyOf(holderIndex.getHolders(brokenPos).entrySet())) {
+            ServerPlayer player = server.getPlayerList().getPlayer(entry.getKey());
+            PlayerState state = players.get(entry.getKey());
+            if (player == null || state == null) continue;
             
-            ItemStack offHand = player.getOffhandItem();
-            if (isCompassPointingTo(offHand, brokenPos)) {
-                ItemStack updated = offHand.copy();
-                updateCompassLore(updated, brokenPos, false, player);
-                player.setItemSlot(net.minecraft.world.entity.EquipmentSlot.OFFHAND, updated);
-                inventoryChanged = true;
-            }
-            
-            
-            for (int i = 0; i < 36; i++) {
-                ItemStack stack = player.getInventory().getItem(i);
+            BitSet slots = (BitSet) entry.getValue().clone();
+            for (int slot = slots.nextSetBit(0); slot >= 0 && slot < TRACKED_SLOTS; slot = slots.nextSetBit(slot + 1)) {
+                ItemStack stack = getTrackedSlotItem(player, slot);
                 if (isCompassPointingTo(stack, brokenPos)) {
-                    ItemStack updated = stack.copy();
-                    updateCompassLore(updated, brokenPos, false, player);
-                    player.getInventory().setItem(i, updated);
-                    inventoryChanged = true;
+                    applyCompassLore(player, state, slot, stack, brokenPos, false);
                 }
             }
-            
-            
-            if (inventoryChanged) {
-                player.inventoryMenu.sendAllDataToRemote();
-            }
+            state.dirtySlots.or(slots);
         }
     }
     
@@ -477,27 +684,34 @@ public class LodestoneCompassTracker {
      * This ensures color changes are immediately visible to all players.
      */
     public void refreshWaypointsForLodestone(GlobalPos lodestonePos, net.minecraft.server.MinecraftServer server) {
-        // Find all players that might be tracking this lodestone and refresh their waypoints
-        for (UUID playerId : playerWaypoints.keySet()) {
-            Map<GlobalPos, LodestoneWaypointTransmitter> waypoints = playerWaypoints.get(playerId);
-            if (waypoints != null && waypoints.containsKey(lodestonePos)) {
-                // Find the player and refresh their waypoint immediately
-                ServerPlayer player = server.getPlayerList().getPlayer(playerId);
-                if (player != null) {
-                    // Remove the old waypoint
-                    LodestoneWaypointTransmitter oldWaypoint = waypoints.get(lodestonePos);
-                    if (oldWaypoint != null) {
-                        removeWaypoint(player.level(), oldWaypoint);
-                    }
-                    
-                    // Create a new waypoint with updated color
-                    LodestoneWaypointTransmitter newWaypoint = createWaypoint(player, lodestonePos);
-                    if (newWaypoint != null) {
-                        waypoints.put(lodestonePos, newWaypoint);
-                    }
-                }
+        for (Map.Entry<UUID, BitSet> entry : List.copyOf(holderIndex.getHolders(lodestonePos).entrySet())) {
+            ServerPlayer player = server.getPlayerList().getPlayer(entry.getKey());
+            PlayerState state = players.get(entry.getKey());
+            if (player == null || state == null) continue;
+            
+            // Compasses pointing at a re-placed lodestone have no waypoint yet, so give them a rescan
+            state.dirtySlots.or(entry.getValue());
+            
+            LodestoneWaypointTransmitter waypoint = state.waypoints.get(lodestonePos);
+            if (waypoint != null) {
+                refreshWaypointIcon(player, state, waypoint, lodestonePos);
             }
         }
     }
     
+    /**
+     * Updates an existing waypoint's icon in place, so a colour change is a single update
+     * instead of removing the waypoint and tracking a new one.
+     */
+    private void refreshWaypointIcon(ServerPlayer player, PlayerState state, LodestoneWaypointTransmitter waypoint, GlobalPos targetPos) {
+        ItemStack compass = findCompassForPosition(player, state, targetPos);
+        if (compass == null) return;
+        
+        Waypoint.Icon icon = createCompassIcon(compass, targetPos, player);
+        if (!waypoint.hasIcon(player.getUUID(), icon)) {
+            waypoint.setIcon(player.getUUID(), icon);
+            waypoint.pushUpdate();
+        }
+    }
+    
 }
\ No newline at end of file
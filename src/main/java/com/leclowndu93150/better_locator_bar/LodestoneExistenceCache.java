@@ -0,0 +1,122 @@
+package com.leclowndu93150.better_locator_bar;
+
+import net.minecraft.core.BlockPos;
+import net.minecraft.core.GlobalPos;
+import net.minecraft.core.SectionPos;
+import net.minecraft.resources.ResourceKey;
+import net.minecraft.server.level.ServerChunkCache;
+import net.minecraft.server.level.ServerLevel;
+import net.minecraft.world.level.Level;
+import net.minecraft.world.level.block.Blocks;
+import net.minecraft.world.level.chunk.ChunkAccess;
+import net.minecraft.world.level.chunk.LevelChunk;
+import net.minecraft.world.level.chunk.status.ChunkStatus;
+
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Consumer;
+
+/**
+ * Per-dimension cache of whether a lodestone still stands at a compass target, so verifying the
+ * same target for many players is a hash lookup instead of a block state access.
+ * Entries are dropped on lodestone place/break and block change notifications, and re-verified
+ * after a configurable time in case the block was changed without notifying its neighbours.
+ * <p>
+ * Targets in unloaded chunks are never loaded synchronously: the chunk is requested through the
+ * chunk cache's future API and the last known verdict is kept until the result arrives. Only the
+ * saved chunk is read, it is never promoted to a full chunk.
+ */
+public class LodestoneExistenceCache {
+    private final Map<ResourceKey<Level>, Map<BlockPos, Entry>> dimensions = new ConcurrentHashMap<>();
+    private final Set<GlobalPos> pendingLookups = ConcurrentHashMap.newKeySet();
+    private final Consumer<GlobalPos> verdictListener;
+
+    private record Entry(boolean exists, long checkedAt) {}
+
+    /**
+     * @param verdictListener called on the server thread when an asynchronous lookup changes a verdict
+     */
+    public LodestoneExistenceCache(Consumer<GlobalPos> verdictListener) {
+        this.verdictListener = verdictListener;
+    }
+
+    public boolean isLodestone(ServerLevel level, BlockPos pos) {
+        Map<BlockPos, Entry> entries = dimensions.computeIfAbsent(level.dimension(), k -> new ConcurrentHashMap<>());
+        long now = level.getGameTime();
+
+        Entry entry = entries.get(pos);
+        if (entry != null && now - entry.checkedAt() < Config.EXISTENCE_CACHE_TTL.getAsInt()) {
+            return entry.exists();
+        }
+
+        if (!Config.ASYNC_CHUNK_VERIFICATION.getAsBoolean()) {
+            boolean exists = level.getBlockState(pos).is(Blocks.LODESTONE);
+            entries.put(pos.immutable(), new Entry(exists, now));
+            return exists;
+        }
+
+        LevelChunk chunk = level.getChunkSource().getChunkNow(SectionPos.blockToSectionCoord(pos.getX()), SectionPos.blockToSectionCoord(pos.getZ()));
+        if (chunk != null) {
+            boolean exists = chunk.getBlockState(pos).is(Blocks.LODESTONE);
+            entries.put(pos.immutable(), new Entry(exists, now));
+            return exists;
+        }
+
+        scheduleLookup(level, pos.immutable());
+        if (entry != null) {
+            return entry.exists();
+        }
+
+        // Never checked before: trust the registry until the chunk has been looked at. Only a region that is
+        // already in memory is consulted; otherwise it is loaded in the background and the target counts as
+        // missing until the lookup above reports back and its holders are rescanned.
+        return LodestoneColorRegistry.get(level.getServer()).getLoadedColor(GlobalPos.of(level.dimension(), pos), CompassColorResolver.NO_COLOR)
+                != CompassColorResolver.NO_COLOR;
+    }
+
+    private void scheduleLookup(ServerLevel level, BlockPos pos) {
+        GlobalPos key = GlobalPos.of(level.dimension(), pos);
+        if (!pendingLookups.add(key)) return;
+
+        ServerChunkCache chunkSource = level.getChunkSource();
+        int chunkX = SectionPos.blockToSectionCoord(pos.getX());
+        int chunkZ = SectionPos.blockToSectionCoord(pos.getZ());
+
+        // Off the server thread the chunk cache hands back a future instead of blocking until the chunk is loaded.
+        // EMPTY only reads the saved chunk: its blocks are all that is needed, and unlike FULL it doesn't promote
+        // the chunk (block entities, chunk load events) on the server thread. A chunk that was never saved
+        // comes back empty, which is right since no lodestone can stand in it.
+        CompletableFuture.supplyAsync(() -> chunkSource.getChunkFuture(chunkX, chunkZ, ChunkStatus.EMPTY, true))
+                .thenCompose(future -> future)
+                .whenComplete((result, error) -> level.getServer().execute(() -> {
+                    pendingLookups.remove(key);
+                    ChunkAccess chunk = error == null ? result.orElse(null) : null;
+                    if (chunk != null) {
+                        boolean exists = chunk.getBlockState(pos).is(Blocks.LODESTONE);
+                        Entry previous = dimensions.computeIfAbsent(key.dimension(), k -> new ConcurrentHashMap<>())
+                                .put(pos, new Entry(exists, level.getGameTime()));
+                        if (previous == null || previous.exists() != exists) {
+                            verdictListener.accept(key);
+                        }
+                    }
+                }));
+    }
+
+    public void invalidate(GlobalPos pos) {
+        invalidate(pos.dimension(), pos.pos());
+    }
+
+    /**
+     * @return whether a verdict was cached for the position, i.e. whether it is a compass target
+     */
+    public boolean invalidate(ResourceKey<Level> dimension, BlockPos pos) {
+        Map<BlockPos, Entry> entries = dimensions.get(dimension);
+        return entries != null && entries.remove(pos) != null;
+    }
+
+    public void clearDimension(ResourceKey<Level> dimension) {
+        dimensions.remove(dimension);
+    }
+}
@@ -0,0 +1,75 @@
+package com.leclowndu93150.better_locator_bar;
+
+import net.minecraft.core.GlobalPos;
+import net.minecraft.core.SectionPos;
+import net.minecraft.server.MinecraftServer;
+import net.minecraft.server.level.ServerLevel;
+import net.minecraft.world.level.block.Blocks;
+import net.minecraft.world.level.chunk.LevelChunk;
+
+import java.util.ArrayDeque;
+import java.util.Queue;
+
+/**
+ * Removes registry entries whose lodestone is gone. Only breaking a lodestone by hand removes its
+ * colour, so lodestones destroyed by explosions, pistons, commands or editing tools would otherwise
+ * stay in the registry forever. Every pass walks the lodestones of the loaded regions a few per tick,
+ * checks the ones in loaded chunks against the world and reports how many it removed.
+ */
+public class LodestoneOrphanSweeper {
+    private final LodestoneCompassTracker tracker;
+    // Lodestones left to check in the current pass
+    private final Queue<GlobalPos> pending = new ArrayDeque<>();
+    private int ticksUntilNextPass;
+    private int removedThisPass;
+
+    public LodestoneOrphanSweeper(LodestoneCompassTracker tracker) {
+        this.tracker = tracker;
+    }
+
+    public void onServerTick(MinecraftServer server) {
+        if (pending.isEmpty()) {
+            if (--ticksUntilNextPass > 0) return;
+            ticksUntilNextPass = Config.ORPHAN_SWEEP_INTERVAL.getAsInt();
+            pending.addAll(LodestoneColorRegistry.get(server).getLoadedLodestones());
+            removedThisPass = 0;
+            return;
+        }
+
+        LodestoneColorRegistry registry = LodestoneColorRegistry.get(server);
+        int budget = Config.ORPHAN_SWEEP_BUDGET.getAsInt();
+        for (int i = 0; i < budget && !pending.isEmpty(); i++) {
+            GlobalPos pos = pending.poll();
+            if (isOrphaned(server, pos)) {
+                registry.removeLodestone(pos);
+                tracker.invalidateLodestone(pos);
+                tracker.updateCompassesForBrokenLodestone(pos, server);
+                removedThisPass++;
+            }
+        }
+
+        if (pending.isEmpty() && removedThisPass > 0) {
+            System.err.println("Removed " + removedThisPass + " lodestone colors whose lodestone no longer exists");
+        }
+    }
+
+    /**
+     * Only lodestones in loaded chunks are checked; the sweep never loads a chunk.
+     */
+    private static boolean isOrphaned(MinecraftServer server, GlobalPos pos) {
+        ServerLevel level = server.getLevel(pos.dimension());
+        if (level == null) return false;
+
+        LevelChunk chunk = level.getChunkSource().getChunkNow(SectionPos.blockToSectionCoord(pos.pos().getX()), SectionPos.blockToSectionCoord(pos.pos().getZ()));
+        return chunk != null && !chunk.getBlockState(pos.pos()).is(Blocks.LODESTONE);
+    }
+
+    /**
+     * Drops the current pass, so a pass started on one server never checks another server's worlds.
+     */
+    public void reset() {
+        pending.clear();
+        ticksUntilNextPass = 0;
+        removedThisPass = 0;
+    }
+}
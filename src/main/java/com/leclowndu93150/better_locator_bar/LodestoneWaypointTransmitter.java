@@ -1,34 +1,67 @@
 package com.leclowndu93150.better_locator_bar;
 
 import net.minecraft.core.BlockPos;
-import net.minecraft.core.GlobalPos;
-import net.minecraft.core.component.DataComponents;
 import net.minecraft.network.protocol.game.ClientboundTrackedWaypointPacket;
+import net.minecraft.server.level.ServerLevel;
 import net.minecraft.server.level.ServerPlayer;
+import net.minecraft.world.entity.ai.attributes.AttributeInstance;
 import net.minecraft.world.entity.ai.attributes.Attributes;
-import net.minecraft.world.item.ItemStack;
-import net.minecraft.world.item.Items;
-import net.minecraft.world.item.component.LodestoneTracker;
+import net.minecraft.world.level.border.WorldBorder;
 import net.minecraft.world.waypoints.Waypoint;
 import net.minecraft.world.waypoints.WaypointTransmitter;
 import com.leclowndu93150.better_locator_bar.network.ModdedPlayerTracker;
+import com.leclowndu93150.better_locator_bar.network.WaypointPacketBatcher;
 
+import java.util.HashMap;
+import java.util.Map;
 import java.util.Optional;
 import java.util.UUID;
 
+/**
+ * A lodestone waypoint shown to the players registered as its receivers, each with their own icon.
+ * Depending on the config there is either one transmitter per lodestone shared by all holders of a
+ * compass for it, or one per player and lodestone with a single receiver.
+ */
 public class LodestoneWaypointTransmitter implements WaypointTransmitter {
+    private static final Waypoint.Icon DEFAULT_ICON = createDefaultIcon();
+
     private final UUID uuid;
     private final BlockPos pos;
-    private final Waypoint.Icon icon;
+    // Centre of the lodestone block, precomputed for the per-tick range checks
+    private final double centerX;
+    private final double centerY;
+    private final double centerZ;
     private final int range;
-    private final UUID ownerPlayerId;
+    private final Map<UUID, Receiver> receivers = new HashMap<>();
+    // The level whose waypoint manager this is tracked in, or null while untracked
+    private ServerLevel trackedLevel;
+
+    /**
+     * The icon a receiver is shown. The version is bumped on every icon change so connections only
+     * resend when something actually changed.
+     */
+    private static final class Receiver {
+        Waypoint.Icon icon;
+        int iconVersion;
+
+        Receiver(Waypoint.Icon icon) {
+            this.icon = icon;
+        }
+    }
 
-    public LodestoneWaypointTransmitter(UUID uuid, BlockPos pos, Waypoint.Icon icon, int range, UUID ownerPlayerId) {
+    public LodestoneWaypointTransmitter(UUID uuid, BlockPos pos, int range) {
         this.uuid = uuid;
         this.pos = pos;
-        this.icon = icon;
+        this.centerX = pos.getX() + 0.5;
+        this.centerY = pos.getY() + 0.5;
+        this.centerZ = pos.getZ() + 0.5;
         this.range = range;
-        this.ownerPlayerId = ownerPlayerId;
+    }
+
+    private static Waypoint.Icon createDefaultIcon() {
+        Waypoint.Icon icon = new Waypoint.Icon();
+        icon.style = LodestoneWaypointStyles.LODESTONE;
+        return icon;
     }
 
     @Override
@@ -38,15 +71,78 @@ public class LodestoneWaypointTransmitter implements WaypointTransmitter {
 
     @Override
     public Optional<Connection> makeWaypointConnectionWith(ServerPlayer receiver) {
-        if (receiver.getUUID().equals(ownerPlayerId)) {
-            return Optional.of(new LodestoneConnection(receiver));
+        Receiver entry = receivers.get(receiver.getUUID());
+        if (entry != null) {
+            return Optional.of(new LodestoneConnection(receiver, entry));
         }
         return Optional.empty();
     }
 
     @Override
     public Waypoint.Icon waypointIcon() {
-        return icon;
+        return DEFAULT_ICON;
+    }
+
+    /**
+     * Adds a receiver, or replaces its icon if it already is one. Callers push the change through
+     * {@link #pushUpdate()}.
+     */
+    public void setIcon(UUID playerId, Waypoint.Icon icon) {
+        Receiver entry = receivers.get(playerId);
+        if (entry == null) {
+            receivers.put(playerId, new Receiver(icon));
+        } else {
+            entry.icon = icon;
+            entry.iconVersion++;
+        }
+    }
+
+    public boolean hasIcon(UUID playerId, Waypoint.Icon other) {
+        Receiver entry = receivers.get(playerId);
+        return entry != null && entry.icon.style.equals(other.style) && entry.icon.color.equals(other.color);
+    }
+
+    /**
+     * Removes a receiver. Its connection reports itself broken on the next update and is dropped by
+     * the waypoint manager.
+     */
+    public void removeReceiver(UUID playerId) {
+        receivers.remove(playerId);
+    }
+
+    public boolean hasReceivers() {
+        return !receivers.isEmpty();
+    }
+
+    /**
+     * Connects new receivers, drops removed ones and resends changed icons.
+     */
+    public void pushUpdate() {
+        if (trackedLevel != null) {
+            trackedLevel.getWaypointManager().updateWaypoint(this);
+        }
+    }
+
+    /**
+     * Tracks the waypoint in the given level, untracking it from any level it was tracked in before,
+     * so a transmitter is never left behind in another level's waypoint manager.
+     */
+    public void trackIn(ServerLevel level) {
+        untrack();
+        level.getWaypointManager().trackWaypoint(this);
+        trackedLevel = level;
+    }
+
+    public void untrack() {
+        if (trackedLevel != null) {
+            ServerLevel level = trackedLevel;
+            trackedLevel = null;
+            level.getWaypointManager().untrackWaypoint(this);
+        }
+    }
+
+    public ServerLevel getTrackedLevel() {
+        return trackedLevel;
     }
 
     public UUID getUUID() {
@@ -59,152 +155,103 @@ public class LodestoneWaypointTransmitter implements WaypointTransmitter {
 
     public class LodestoneConnection implements WaypointTransmitter.Connection {
         private final ServerPlayer receiver;
+        private final Receiver entry;
+        private final AttributeInstance receiveRange;
+        // The squared range is only recomputed when the receive range or the world border changes
+        private double lastReceiveRange = Double.NaN;
+        private double lastBorderSize = Double.NaN;
+        private double rangeSqr;
+        private boolean coversWorld;
+        private int sentIconVersion;
+        // Whether the modded icon was sent; the client only reports the mod after the first connect
+        private boolean sentModdedIcon;
+        private Waypoint.Icon unmoddedIcon;
+        private int unmoddedIconVersion;
 
-        public LodestoneConnection(ServerPlayer receiver) {
+        private LodestoneConnection(ServerPlayer receiver, Receiver entry) {
             this.receiver = receiver;
+            this.entry = entry;
+            this.receiveRange = receiver.getAttribute(Attributes.WAYPOINT_RECEIVE_RANGE);
         }
 
         @Override
         public void connect() {
-            Waypoint.Icon iconToSend = ModdedPlayerTracker.hasModInstalled(receiver) ? icon : createUnmoddedIcon();
-            this.receiver.connection.send(ClientboundTrackedWaypointPacket.addWaypointPosition(uuid, iconToSend, pos));
+            sendIcon(ModdedPlayerTracker.hasModInstalled(receiver));
         }
 
         @Override
         public void disconnect() {
-            this.receiver.connection.send(ClientboundTrackedWaypointPacket.removeWaypoint(uuid));
+            WaypointPacketBatcher.queue(this.receiver, uuid, ClientboundTrackedWaypointPacket.removeWaypoint(uuid));
         }
 
+        /**
+         * Lodestones never move, so the only thing to update is the icon, resent when it changed or the
+         * receiver turned out to have the mod. Re-tracking the same id replaces the client's entry in a
+         * single packet.
+         */
         @Override
         public void update() {
-            Waypoint.Icon iconToSend = ModdedPlayerTracker.hasModInstalled(receiver) ? icon : createUnmoddedIcon();
-            this.receiver.connection.send(ClientboundTrackedWaypointPacket.addWaypointPosition(uuid, iconToSend, pos));
-        }
+            boolean modded = ModdedPlayerTracker.hasModInstalled(receiver);
+            if (sentIconVersion == entry.iconVersion && sentModdedIcon == modded) return;
 
-        @Override
-        public boolean isBroken() {
-            double d = Math.min(range, receiver.getAttributeValue(Attributes.WAYPOINT_RECEIVE_RANGE));
-            return receiver.distanceToSqr(pos.getCenter()) >= d * d;
+            sendIcon(modded);
         }
 
-        /**
-         * Creates an icon for unmodded players that matches the color of their compass lore dot.
-         * This ensures color consistency between the compass dot and the locator bar indicator.
-         */
-        private Waypoint.Icon createUnmoddedIcon() {
-            Waypoint.Icon unmoddedIcon = new Waypoint.Icon();
-            
-            // Find the compass that points to this position to get its color
-            GlobalPos targetPos = GlobalPos.of(receiver.level().dimension(), pos);
-            ItemStack compass = findCompassForPosition(receiver, targetPos);
-            
-            if (compass != null) {
-                // Use the same color logic as the compass lore
-                int compassColor = getCompassColor(compass, targetPos, receiver);
-                unmoddedIcon.color = Optional.of(compassColor);
-            }
-            
-            return unmoddedIcon;
+        private void sendIcon(boolean modded) {
+            sentIconVersion = entry.iconVersion;
+            sentModdedIcon = modded;
+            Waypoint.Icon iconToSend = modded ? entry.icon : getUnmoddedIcon();
+            WaypointPacketBatcher.queue(this.receiver, uuid, ClientboundTrackedWaypointPacket.addWaypointPosition(uuid, iconToSend, pos));
         }
-        
-        /**
-         * Finds a compass in the player's inventory that points to the specified position.
-         */
-        private ItemStack findCompassForPosition(ServerPlayer player, GlobalPos targetPos) {
-            // Check main hand
-            ItemStack mainHand = player.getMainHandItem();
-            if (isCompassPointingTo(mainHand, targetPos)) {
-                return mainHand;
-            }
-            
-            // Check offhand
-            ItemStack offHand = player.getOffhandItem();
-            if (isCompassPointingTo(offHand, targetPos)) {
-                return offHand;
-            }
-            
-            // Check inventory
-            for (int i = 0; i < 36; i++) {
-                ItemStack stack = player.getInventory().getItem(i);
-                if (isCompassPointingTo(stack, targetPos)) {
-                    return stack;
-                }
-            }
-            
-            return null;
-        }
-        
+
         /**
-         * Checks if a compass points to the specified position.
+         * Called by the waypoint manager for every connection every tick. The effective squared range is
+         * cached, and when it reaches every corner of the world border the distance is not checked at all.
+         * A connection whose receiver was removed is always broken.
          */
-        private boolean isCompassPointingTo(ItemStack stack, GlobalPos targetPos) {
-            if (!stack.is(Items.COMPASS) || !stack.has(DataComponents.LODESTONE_TRACKER)) {
-                return false;
-            }
-            
-            LodestoneTracker tracker = stack.get(DataComponents.LODESTONE_TRACKER);
-            if (tracker != null && tracker.target().isPresent()) {
-                return tracker.target().get().equals(targetPos);
+        @Override
+        public boolean isBroken() {
+            if (receivers.get(receiver.getUUID()) != entry) return true;
+
+            double currentRange = receiveRange.getValue();
+            WorldBorder border = receiver.level().getWorldBorder();
+            if (currentRange != lastReceiveRange || border.getSize() != lastBorderSize) {
+                updateRange(currentRange, border);
             }
-            return false;
+            if (coversWorld) return false;
+
+            double dx = receiver.getX() - centerX;
+            double dy = receiver.getY() - centerY;
+            double dz = receiver.getZ() - centerZ;
+            return dx * dx + dy * dy + dz * dz >= rangeSqr;
         }
-        
-        /**
-         * Gets the color for a compass using the same logic as compass lore.
-         * This is copied from LodestoneCompassTracker.getCompassColor() to maintain consistency.
-         */
-        private int getCompassColor(ItemStack compass, GlobalPos targetPos, ServerPlayer player) {
-            // Check for TCC dyed compass colors first
-            if (compass.has(DataComponents.ITEM_MODEL)) {
-                String itemModel = compass.get(DataComponents.ITEM_MODEL).toString();
-                if (itemModel.contains("tcc:dyed_compass/")) {
-                    String colorName = itemModel.substring(itemModel.lastIndexOf("/") + 1);
-                    Optional<Integer> color = getTCCCompassColor(colorName);
-                    if (color.isPresent()) {
-                        return color.get();
-                    }
-                }
-            }
 
-            // Use shared lodestone color if no TCC color
-            try {
-                LodestoneColorRegistry registry = LodestoneColorRegistry.get(player.getServer());
-                Integer lodestoneColor = registry.getLodestoneColor(targetPos);
-                if (lodestoneColor != null) {
-                    return lodestoneColor;
-                }
-            } catch (Exception e) {
-                // Fallback if registry access fails
-            }
+        private void updateRange(double currentRange, WorldBorder border) {
+            lastReceiveRange = currentRange;
+            lastBorderSize = border.getSize();
 
-            // Default color
-            return 0x55FFFF;
+            double d = Math.min(range, currentRange);
+            rangeSqr = d * d;
+
+            double dx = Math.max(Math.abs(centerX - border.getMinX()), Math.abs(centerX - border.getMaxX()));
+            double dz = Math.max(Math.abs(centerZ - border.getMinZ()), Math.abs(centerZ - border.getMaxZ()));
+            double dy = Math.max(Math.abs(centerY - receiver.level().getMinY()), Math.abs(centerY - receiver.level().getMaxY()));
+            coversWorld = dx * dx + dy * dy + dz * dz < rangeSqr;
         }
-        
+
         /**
-         * Gets TCC compass color mapping.
-         * This is copied from LodestoneCompassTracker.getTCCCompassColor() to maintain consistency.
+         * Creates an icon for unmodded players that matches the color of their compass lore dot.
+         * The lore dot uses the same colour as the lodestone icon, falling back to the default compass
+         * colour, so the icon is derived from it and only rebuilt when the receiver's icon changes.
          */
-        private Optional<Integer> getTCCCompassColor(String colorName) {
-            return switch (colorName) {
-                case "white" -> Optional.of(0xF9FFFE);
-                case "light_gray" -> Optional.of(0x9D9D97);
-                case "gray" -> Optional.of(0x474F52);
-                case "black" -> Optional.of(0x1D1D21);
-                case "brown" -> Optional.of(0x835432);
-                case "red" -> Optional.of(0xB02E26);
-                case "orange" -> Optional.of(0xF9801D);
-                case "yellow" -> Optional.of(0xFED83D);
-                case "lime" -> Optional.of(0x80C71F);
-                case "green" -> Optional.of(0x5E7C16);
-                case "cyan" -> Optional.of(0x169C9C);
-                case "light_blue" -> Optional.of(0x3AB3DA);
-                case "blue" -> Optional.of(0x3C44AA);
-                case "purple" -> Optional.of(0x8932B8);
-                case "magenta" -> Optional.of(0xC74EBD);
-                case "pink" -> Optional.of(0xF38BAA);
-                default -> Optional.empty();
-            };
+        private Waypoint.Icon getUnmoddedIcon() {
+            if (unmoddedIcon == null || unmoddedIconVersion != entry.iconVersion) {
+                Waypoint.Icon rebuilt = new Waypoint.Icon();
+                rebuilt.color = Optional.of(entry.icon.color.orElse(LodestoneCompassTracker.DEFAULT_COMPASS_COLOR));
+                unmoddedIcon = rebuilt;
+                unmoddedIconVersion = entry.iconVersion;
+            }
+            return unmoddedIcon;
         }
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,38 @@
+package com.leclowndu93150.better_locator_bar;
+
+import com.mojang.datafixers.util.Either;
+import it.unimi.dsi.fastutil.ints.Int2IntOpenHashMap;
+import net.minecraft.util.ARGB;
+
+import java.util.UUID;
+import java.util.function.Consumer;
+
+/**
+ * The colour vanilla gives a waypoint without an icon colour: its id's hash at 90% brightness.
+ * Colours are cached by that hash, so no waypoint or id is kept alive, and the id is unwrapped through
+ * a reused consumer instead of {@link Either#map}, so looking a colour up never allocates or boxes.
+ * <p>
+ * Not thread-safe; each renderer owns its own instance and only uses it on the render thread.
+ */
+public class WaypointIdColors {
+    private static final int MAX_CACHED_COLORS = 1024;
+
+    private final Int2IntOpenHashMap colors = new Int2IntOpenHashMap();
+    private final Consumer<Object> hashReader = id -> this.idHash = id.hashCode();
+    private int idHash;
+
+    public int getColor(Either<UUID, String> id) {
+        id.ifLeft(hashReader).ifRight(hashReader);
+        int hash = idHash;
+
+        int color = colors.get(hash);
+        if (color == 0 && !colors.containsKey(hash)) {
+            if (colors.size() >= MAX_CACHED_COLORS) {
+                colors.clear();
+            }
+            color = ARGB.setBrightness(ARGB.color(255, hash), 0.9F);
+            colors.put(hash, color);
+        }
+        return color;
+    }
+}
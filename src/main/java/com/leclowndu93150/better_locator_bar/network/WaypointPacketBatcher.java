@@ -0,0 +1,68 @@
+package com.leclowndu93150.better_locator_bar.network;
+
+import net.minecraft.network.protocol.Packet;
+import net.minecraft.network.protocol.game.ClientGamePacketListener;
+import net.minecraft.network.protocol.game.ClientboundBundlePacket;
+import net.minecraft.network.protocol.game.ClientboundTrackedWaypointPacket;
+import net.minecraft.server.level.ServerPlayer;
+import net.neoforged.bus.api.SubscribeEvent;
+import net.neoforged.fml.common.EventBusSubscriber;
+import net.neoforged.neoforge.event.tick.ServerTickEvent;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * Collects the waypoint packets sent to each player during a tick, keeping only the latest
+ * operation per waypoint, and sends them as one bundle at the end of the tick.
+ * Only accessed from the server thread.
+ */
+@EventBusSubscriber(modid = "better_locator_bar")
+public class WaypointPacketBatcher {
+    // Vanilla rejects bundles with more packets than this
+    private static final int MAX_BUNDLE_SIZE = 4096;
+
+    private static final Map<ServerPlayer, Map<UUID, ClientboundTrackedWaypointPacket>> PENDING = new LinkedHashMap<>();
+
+    public static void queue(ServerPlayer receiver, UUID waypointId, ClientboundTrackedWaypointPacket packet) {
+        PENDING.computeIfAbsent(receiver, k -> new LinkedHashMap<>()).put(waypointId, packet);
+    }
+
+    @SubscribeEvent
+    public static void onServerTickEnd(ServerTickEvent.Post event) {
+        if (PENDING.isEmpty()) return;
+
+        for (Map.Entry<ServerPlayer, Map<UUID, ClientboundTrackedWaypointPacket>> entry : PENDING.entrySet()) {
+            ServerPlayer receiver = entry.getKey();
+            if (!receiver.hasDisconnected()) {
+                flush(receiver, entry.getValue().values());
+            }
+        }
+        PENDING.clear();
+    }
+
+    private static void flush(ServerPlayer receiver, Iterable<ClientboundTrackedWaypointPacket> packets) {
+        List<Packet<? super ClientGamePacketListener>> bundle = new ArrayList<>();
+        for (ClientboundTrackedWaypointPacket packet : packets) {
+            bundle.add(packet);
+            if (bundle.size() == MAX_BUNDLE_SIZE) {
+                send(receiver, bundle);
+                bundle = new ArrayList<>();
+            }
+        }
+        if (!bundle.isEmpty()) {
+            send(receiver, bundle);
+        }
+    }
+
+    private static void send(ServerPlayer receiver, List<Packet<? super ClientGamePacketListener>> packets) {
+        if (packets.size() == 1) {
+            receiver.connection.send(packets.get(0));
+        } else {
+            receiver.connection.send(new ClientboundBundlePacket(packets));
+        }
+    }
+}